@@ -0,0 +1,205 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Microbenchmarks of the hot paths of the engine, on an opening, a
+ * middlegame and an endgame state.
+ *
+ * The engine lives in the default package, which can't be imported, and JMH
+ * doesn't accept benchmarks in the default package. So the engine is called
+ * through method handles kept in static final fields, which the JIT treats
+ * as constants and inlines like direct calls.
+ *
+ * Run with main(), which reports ops/s and, through the GC profiler, the
+ * bytes allocated per op (gc.alloc.rate.norm). It accepts the usual JMH
+ * command line options (e.g. -p position=endgame).
+ *
+ * @author fruggeri
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckersBenchmark {
+    private static final int MAX_MOVES;
+    private static final int CELL_RED;
+    private static final MethodHandle PARSE;            // new GameState(String)
+    private static final MethodHandle COPY;             // new GameState(GameState)
+    private static final MethodHandle NEW_MOVE;         // new Move(long)
+    private static final MethodHandle TO_MESSAGE;       // GameState.toMessage()
+    private static final MethodHandle FIND_MOVES;       // GameState.findPossibleMoves(long[])
+    private static final MethodHandle DO_MOVE;          // GameState.doMove(Move)
+    private static final MethodHandle MAKE_MOVE;        // GameState.makeMove(long)
+    private static final MethodHandle UNMAKE_MOVE;      // GameState.unmakeMove(long, long)
+    private static final MethodHandle NEW_PLAYER;       // new Player()
+    private static final MethodHandle SET_WHO_AM_I;     // Player.whoAmI =
+    private static final MethodHandle EVALUATE;         // Player.evaluate(GameState, int)
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> gameState = Class.forName("GameState");
+            Class<?> move = Class.forName("Move");
+            Class<?> player = Class.forName("Player");
+
+            MAX_MOVES = accessible(gameState.getDeclaredField("MAX_MOVES")).getInt(null);
+            CELL_RED = accessible(Class.forName("Constants").getDeclaredField("CELL_RED")).getInt(null);
+
+            PARSE = erase(lookup.unreflectConstructor(accessible(gameState.getDeclaredConstructor(String.class))));
+            COPY = erase(lookup.unreflectConstructor(accessible(gameState.getDeclaredConstructor(gameState))));
+            NEW_MOVE = erase(lookup.unreflectConstructor(accessible(move.getDeclaredConstructor(long.class))));
+            TO_MESSAGE = erase(lookup.unreflect(accessible(gameState.getDeclaredMethod("toMessage"))));
+            FIND_MOVES = erase(lookup.unreflect(accessible(gameState.getDeclaredMethod("findPossibleMoves", long[].class))));
+            DO_MOVE = erase(lookup.unreflect(accessible(gameState.getDeclaredMethod("doMove", move))));
+            MAKE_MOVE = erase(lookup.unreflect(accessible(gameState.getDeclaredMethod("makeMove", long.class))));
+            UNMAKE_MOVE = erase(lookup.unreflect(accessible(gameState.getDeclaredMethod("unmakeMove", long.class, long.class))));
+            NEW_PLAYER = erase(lookup.unreflectConstructor(accessible(player.getDeclaredConstructor())));
+            SET_WHO_AM_I = erase(lookup.unreflectSetter(accessible(player.getDeclaredField("whoAmI"))));
+            EVALUATE = erase(lookup.unreflect(accessible(player.getDeclaredMethod("evaluate", gameState, int.class))));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Param({ "opening", "middlegame", "endgame" })
+    public String position;
+
+    private String message;
+    private Object state;
+    private Object player;
+    private long[] moves;
+    private int nMoves;
+    private Object[] moveObjects;
+    private int next;       // move made by the next call of the move benchmarks
+
+    @Setup
+    public void setup() throws Throwable {
+        switch (position) {
+        case "opening":
+            message = "rrrrrrrrrrrr........wwwwwwwwwwww -1 r 50";
+            break;
+        case "middlegame":
+            message = "rrrrr.rr......r.....w.w.w..ww.Rw 1_29_22 r 50";
+            break;
+        case "endgame":
+            message = "..r...r.R......w......W..w...... 0_21_17 w 30";
+            break;
+        default:
+            throw new IllegalArgumentException(position);
+        }
+        state = (Object) PARSE.invokeExact(message);
+        moves = new long[MAX_MOVES];
+        nMoves = (int) FIND_MOVES.invokeExact(state, moves);
+        moveObjects = new Object[nMoves];
+        for (int i=0; i<nMoves; i++)
+            moveObjects[i] = (Object) NEW_MOVE.invokeExact(moves[i]);
+        player = (Object) NEW_PLAYER.invokeExact();
+        SET_WHO_AM_I.invokeExact(player, CELL_RED);
+    }
+
+    @Benchmark
+    public int findPossibleMoves() throws Throwable {
+        return (int) FIND_MOVES.invokeExact(state, moves);
+    }
+
+    /**
+     * doMove() changes the state, so it's done on a copy (the copy is part of
+     * the cost).
+     */
+    @Benchmark
+    public Object doMove() throws Throwable {
+        Object copy = (Object) COPY.invokeExact(state);
+        DO_MOVE.invokeExact(copy, moveObjects[nextMove()]);
+        return copy;
+    }
+
+    /**
+     * The in-place alternative to doMove() used by the search.
+     */
+    @Benchmark
+    public Object makeUnmakeMove() throws Throwable {
+        long move = moves[nextMove()];
+        long undo = (long) MAKE_MOVE.invokeExact(state, move);
+        UNMAKE_MOVE.invokeExact(state, move, undo);
+        return state;
+    }
+
+    @Benchmark
+    public int evaluate() throws Throwable {
+        return (int) EVALUATE.invokeExact(player, state, 0);
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return (Object) PARSE.invokeExact(message);
+    }
+
+    @Benchmark
+    public String toMessage() throws Throwable {
+        return (String) TO_MESSAGE.invokeExact(state);
+    }
+
+    private int nextMove() {
+        next = next+1 < nMoves ? next+1 : 0;
+        return next;
+    }
+
+    private static <T extends java.lang.reflect.AccessibleObject> T accessible(T object) {
+        object.setAccessible(true);
+        return object;
+    }
+
+    /**
+     * Replaces the engine types in the type of a method handle with Object,
+     * so that it can be called with invokeExact() from here.
+     */
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i=0; i<type.parameterCount(); i++)
+            if (isEngineClass(type.parameterType(i)))
+                type = type.changeParameterType(i, Object.class);
+        if (isEngineClass(type.returnType()))
+            type = type.changeReturnType(Object.class);
+        return handle.asType(type);
+    }
+
+    private static boolean isEngineClass(Class<?> c) {
+        return !c.isPrimitive() && !c.isArray() && c.getName().indexOf('.') < 0;  // default package
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(CheckersBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of the decompressed blocks of the compressed tables of the endgame
+ * tablebase (see CompressedTable), shared by all the tables and threads.
+ *
+ * The cache is set-associative: a block can only be kept in the WAYS slots
+ * of the set given by its key, where it replaces the least recently used
+ * one. Blocks are immutable once cached, and slots are replaced atomically,
+ * so reading needs no lock: a hit is a few volatile reads. The recency of
+ * the slots is written without synchronization, at worst a race evicts a
+ * block that is not the least recently used one. Two threads missing the
+ * same block at the same time both decompress it, and one copy is kept.
+ *
+ * @author fruggeri
+ */
+
+public class BlockCache {
+    private static final int WAYS = 4;
+
+    private final AtomicReferenceArray<Block> slots;
+    private final long[] uses;  // last use of each slot, in the order of its set
+    private final int setMask;  // number of sets - 1
+
+    private static class Block {
+        final long key;
+        final byte[] data;
+
+        Block(long key, byte[] data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param sizeMB
+     *            size of the decompressed blocks kept, rounded down to a power
+     *            of 2 sets
+     * @param blockBytes
+     *            size of a decompressed block
+     */
+    public BlockCache(int sizeMB, int blockBytes) {
+        long sets = Math.max(1, ((long) sizeMB << 20) / ((long) blockBytes * WAYS));
+        sets = Math.min(Long.highestOneBit(sets), 1 << 24);
+        setMask = (int) sets - 1;
+        slots = new AtomicReferenceArray<>((int) sets * WAYS);
+        uses = new long[(int) sets * WAYS];
+    }
+
+    /**
+     * Gets a block.
+     *
+     * @return the block, null if it is not in the cache
+     */
+    byte[] get(long key) {
+        int set = getSet(key);
+        for (int i=set; i<set+WAYS; i++) {
+            Block block = slots.get(i);
+            if (block != null && block.key == key) {
+                uses[i] = getLastUse(set) + 1;
+                return block.data;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a block, replacing the least recently used one of its set.
+     */
+    void put(long key, byte[] data) {
+        int set = getSet(key);
+        int victim = set;
+        for (int i=set; i<set+WAYS; i++) {
+            if (slots.get(i) == null) {
+                victim = i;
+                break;
+            }
+            if (uses[i] < uses[victim])
+                victim = i;
+        }
+        uses[victim] = getLastUse(set) + 1;
+        slots.set(victim, new Block(key, data));
+    }
+
+    private long getLastUse(int set) {
+        long last = 0;
+        for (int i=set; i<set+WAYS; i++)
+            last = Math.max(last, uses[i]);
+        return last;
+    }
+
+    private int getSet(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;     // spreads consecutive blocks
+        return ((int) (hash >>> 32) & setMask) * WAYS;
+    }
+
+}
@@ -0,0 +1,189 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Table of the endgame tablebase (see EndgameTablebase) compressed in
+ * blocks, kept in a memory-mapped file.
+ *
+ * The states are split in blocks of BLOCK_STATES, compressed independently,
+ * so that looking up a state only decompresses its block. The results in a
+ * block are run-length encoded, since nearby states (with the same pieces
+ * but one) often have the same result, and the runs are deflated (which
+ * Huffman codes them).
+ *
+ * The file holds the number of blocks, the offsets of the blocks from the
+ * end of the header (one more than the blocks, the last one is the end of
+ * the file), then the blocks. Each run is a varint of its length shifted
+ * left by 2 plus the result.
+ *
+ * Decompressed blocks are 2 bits per state like the uncompressed tables,
+ * and they are kept in a BlockCache shared by all the tables.
+ *
+ * @author fruggeri
+ */
+
+public class CompressedTable {
+    static final int BLOCK_STATES = 1 << 14;
+    static final int BLOCK_BYTES = BLOCK_STATES / 4;
+    private static final int MAX_RUNS_BYTES = 3 * BLOCK_STATES;    // 3 bytes per run at most
+
+    // decompression buffers of each thread
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> RUNS = ThreadLocal.withInitial(() -> new byte[MAX_RUNS_BYTES]);
+
+    private final ByteBuffer file;
+    private final int blocks;
+    private final int header;   // bytes
+    private final long id;      // key of the table in the cache
+    private final BlockCache cache;
+
+    /**
+     * @param file
+     *            the (mapped) content of the file
+     * @param id
+     *            a number identifying the table among the ones sharing the
+     *            cache
+     */
+    CompressedTable(ByteBuffer file, int id, BlockCache cache) {
+        this.file = file;
+        this.blocks = file.getInt(0);
+        this.header = 4 * (blocks + 2);
+        this.id = (long) id << 32;
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the number of states the table has room for.
+     */
+    long getCapacity() {
+        return (long) blocks * BLOCK_STATES;
+    }
+
+    /**
+     * Gets the result of the state with a certain index.
+     */
+    int get(long index) {
+        int block = (int) (index / BLOCK_STATES);
+        byte[] data = cache.get(id | block);
+        if (data == null) {
+            data = decompress(block);
+            cache.put(id | block, data);
+        }
+        int i = (int) (index % BLOCK_STATES);
+        return (data[i >>> 2] >>> ((i & 3) << 1)) & 3;
+    }
+
+    private byte[] decompress(int block) {
+        int start = file.getInt(4 * (block + 1));
+        int end = file.getInt(4 * (block + 2));
+        byte[] compressed = new byte[end - start];
+        ByteBuffer source = file.duplicate();
+        source.position(header + start);
+        source.get(compressed);
+
+        byte[] runs = RUNS.get();
+        int length;
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            length = inflater.inflate(runs);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted tablebase block " + block, e);
+        }
+
+        byte[] data = new byte[BLOCK_BYTES];
+        int state = 0;
+        for (int i=0; i<length; ) {
+            // varint
+            int run = 0;
+            for (int shift=0; ; shift+=7) {
+                byte b = runs[i++];
+                run |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            int result = run & 3;
+            if (result != 0) {
+                for (int s=state; s<state+(run>>>2); s++)
+                    data[s >>> 2] |= result << ((s & 3) << 1);
+            }
+            state += run >>> 2;
+        }
+        return data;
+    }
+
+    /**
+     * Writes a table (2 bits per state) compressed.
+     *
+     * @param states
+     *            the number of states of the table
+     */
+    static void write(byte[] table, long states, OutputStream out) throws IOException {
+        int blocks = (int) ((states + BLOCK_STATES - 1) / BLOCK_STATES);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[blocks + 1];
+        byte[] runs = new byte[MAX_RUNS_BYTES];
+        byte[] compressed = new byte[MAX_RUNS_BYTES];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+        try {
+            for (int block=0; block<blocks; block++) {
+                // run-length encoding (the states after the last one are draws)
+                long first = (long) block * BLOCK_STATES;
+                int length = 0;
+                int run = 0, result = get(table, states, first);
+                for (long s=first; s<first+BLOCK_STATES; s++) {
+                    int next = get(table, states, s);
+                    if (next != result) {
+                        length = putRun(runs, length, run, result);
+                        run = 0;
+                        result = next;
+                    }
+                    run++;
+                }
+                length = putRun(runs, length, run, result);
+
+                deflater.reset();
+                deflater.setInput(runs, 0, length);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int size = deflater.deflate(compressed);
+                    data.write(compressed, 0, size);
+                }
+                offsets[block + 1] = data.size();
+            }
+        } finally {
+            deflater.end();
+        }
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(blocks);
+        for (int offset : offsets)
+            header.writeInt(offset);
+        data.writeTo(out);
+    }
+
+    private static int get(byte[] table, long states, long index) {
+        if (index >= states)
+            return EndgameTablebase.DRAW;
+        return (table[(int) (index >>> 2)] >>> ((index & 3) << 1)) & 3;
+    }
+
+    private static int putRun(byte[] runs, int length, int run, int result) {
+        int value = run << 2 | result;
+        while ((value & ~0x7F) != 0) {
+            runs[length++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        runs[length++] = (byte) value;
+        return length;
+    }
+
+}
@@ -0,0 +1,342 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Endgame tablebase: the result (win, loss or draw for the player moving)
+ * of every state with up to a few pieces, generated by TablebaseGenerator.
+ *
+ * There is a table for each material signature (red men, red kings, white
+ * men, white kings), with red moving. A state with white moving is looked up
+ * reversed (see GameState.reversed()), i.e. with the board rotated and the
+ * colours swapped, which turns it into a state with red moving.
+ *
+ * Each table is a file of 2 bits per state, indexed by a perfect hash of the
+ * placement of the pieces (see index()): every index is a placement, so
+ * nothing is stored but the results. The files are memory-mapped read-only,
+ * outside of the heap and shared by all the threads (and processes) using
+ * them.
+ *
+ * The tables can also be compressed (see CompressedTable), for using larger
+ * tablebases than the memory: only the blocks of the tables being looked up
+ * are decompressed, and kept in a cache of fixed size.
+ *
+ * The draw rule (see GameState.MOVES_UNTIL_DRAW) is ignored, a win may take
+ * longer than the moves left.
+ *
+ * @author fruggeri
+ */
+
+public class EndgameTablebase {
+    // results, for the player moving
+    public static final int DRAW = 0;
+    public static final int WIN = 1;
+    public static final int LOSS = 2;
+    public static final int UNKNOWN = -1;  // the state is not in the tablebase
+
+    private static final String SUFFIX = ".wld";
+    private static final String COMPRESSED_SUFFIX = ".cwld";
+    private static final int DEFAULT_CACHE_SIZE = 16;  // MB of decompressed blocks
+    private static final long[][] BINOMIAL = new long[GameState.NUMBER_OF_SQUARES+1][GameState.NUMBER_OF_SQUARES+1];
+    static {
+        for (int n=0; n<=GameState.NUMBER_OF_SQUARES; n++) {
+            BINOMIAL[n][0] = 1;
+            for (int k=1; k<=n; k++)
+                BINOMIAL[n][k] = BINOMIAL[n-1][k-1] + BINOMIAL[n-1][k];
+        }
+    }
+
+    private final Map<Integer, ByteBuffer> tables = new HashMap<>();
+    private final Map<Integer, CompressedTable> compressedTables = new HashMap<>();
+    private int maxPieces;      // of the largest table
+
+    /**
+     * Maps the tables in a directory, with a cache of DEFAULT_CACHE_SIZE MB
+     * for the compressed ones.
+     *
+     * @throws IOException
+     *             if the directory or a table can't be read
+     */
+    public EndgameTablebase(String directory) throws IOException {
+        this(directory, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Maps the tables in a directory.
+     *
+     * @param cacheMB
+     *            size of the cache of the blocks of the compressed tables
+     * @throws IOException
+     *             if the directory or a table can't be read
+     */
+    public EndgameTablebase(String directory, int cacheMB) throws IOException {
+        File[] files = new File(directory).listFiles((dir, name) ->
+                name.endsWith(SUFFIX) || name.endsWith(COMPRESSED_SUFFIX));
+        if (files == null)
+            throw new IOException("Can't read the tablebase directory " + directory);
+        BlockCache cache = new BlockCache(cacheMB, CompressedTable.BLOCK_BYTES);
+
+        // the mappings stay valid after the files are closed
+        for (File file : files) {
+            boolean compressed = file.getName().endsWith(COMPRESSED_SUFFIX);
+            int signature = parseSignature(file.getName(), compressed ? COMPRESSED_SUFFIX : SUFFIX);
+            try (RandomAccessFile table = new RandomAccessFile(file, "r");
+                    FileChannel channel = table.getChannel()) {
+                ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (compressed) {
+                    CompressedTable compressedTable = new CompressedTable(content, signature, cache);
+                    if (compressedTable.getCapacity() < getSize(signature))
+                        throw new IOException("Wrong size of table " + file);
+                    compressedTables.put(signature, compressedTable);
+                } else {
+                    if (channel.size() != getBytes(signature))
+                        throw new IOException("Wrong size of table " + file);
+                    tables.put(signature, content);
+                }
+            }
+            maxPieces = Math.max(maxPieces, getPieces(signature));
+        }
+    }
+
+    /**
+     * Gets the number of pieces of the largest table.
+     */
+    public int getMaxPieces() {
+        return maxPieces;
+    }
+
+    /**
+     * Gets the number of tables.
+     */
+    public int size() {
+        return tables.size() + compressedTables.size();
+    }
+
+    /**
+     * Looks up the result of a state (which must not be the end of the game).
+     *
+     * @return the result for the player moving, UNKNOWN if there is no table
+     *         for the state
+     */
+    public int probe(GameState state) {
+        int red = state.getPieces(Constants.CELL_RED);
+        int white = state.getPieces(Constants.CELL_WHITE);
+        if (Integer.bitCount(red | white) > maxPieces)
+            return UNKNOWN;
+        int kings = state.getKings();
+        if (state.getNextPlayer() == Constants.CELL_RED)
+            return probe(red, white, kings);
+        return probe(Integer.reverse(white), Integer.reverse(red), Integer.reverse(kings));
+    }
+
+    /**
+     * Looks up the result of a state with red moving.
+     */
+    private int probe(int red, int white, int kings) {
+        if (red == 0)
+            return LOSS;
+        int signature = getSignature(red, white, kings);
+        ByteBuffer table = tables.get(signature);
+        if (table != null)
+            return get(table, index(red, white, kings));
+        CompressedTable compressedTable = compressedTables.get(signature);
+        if (compressedTable != null)
+            return compressedTable.get(index(red, white, kings));
+        return UNKNOWN;
+    }
+
+    /**
+     * Gets the result of the state with a certain index in a table.
+     */
+    static int get(ByteBuffer table, long index) {
+        return (table.get((int) (index >>> 2)) >>> ((index & 3) << 1)) & 3;
+    }
+
+    /*
+     * Material signatures: the numbers of red men, red kings, white men and
+     * white kings, 4 bits each.
+     */
+
+    static int getSignature(int redMen, int redKings, int whiteMen, int whiteKings) {
+        return redMen | redKings << 4 | whiteMen << 8 | whiteKings << 12;
+    }
+
+    static int getSignature(int red, int white, int kings) {
+        return getSignature(Integer.bitCount(red & ~kings), Integer.bitCount(red & kings),
+                Integer.bitCount(white & ~kings), Integer.bitCount(white & kings));
+    }
+
+    static int getRedMen(int signature) {
+        return signature & 0xF;
+    }
+
+    static int getRedKings(int signature) {
+        return signature >>> 4 & 0xF;
+    }
+
+    static int getWhiteMen(int signature) {
+        return signature >>> 8 & 0xF;
+    }
+
+    static int getWhiteKings(int signature) {
+        return signature >>> 12 & 0xF;
+    }
+
+    static int getPieces(int signature) {
+        return getRedMen(signature) + getRedKings(signature) + getWhiteMen(signature) + getWhiteKings(signature);
+    }
+
+    /**
+     * Gets the signature with the colours swapped.
+     */
+    static int getReversed(int signature) {
+        return getSignature(getWhiteMen(signature), getWhiteKings(signature),
+                getRedMen(signature), getRedKings(signature));
+    }
+
+    static String getFileName(int signature, boolean compressed) {
+        return getRedMen(signature) + "-" + getRedKings(signature) + "-" +
+                getWhiteMen(signature) + "-" + getWhiteKings(signature) +
+                (compressed ? COMPRESSED_SUFFIX : SUFFIX);
+    }
+
+    private static int parseSignature(String fileName, String suffix) throws IOException {
+        String[] counts = fileName.substring(0, fileName.length() - suffix.length()).split("-");
+        if (counts.length != 4)
+            throw new IOException("Not a table: " + fileName);
+        return getSignature(Integer.parseInt(counts[0]), Integer.parseInt(counts[1]),
+                Integer.parseInt(counts[2]), Integer.parseInt(counts[3]));
+    }
+
+    /*
+     * Perfect hash: the red men are placed on the 32 squares, then the white
+     * men on the squares left, then the red kings and the white kings. Each
+     * placement of k pieces on the n squares left is numbered (ranked) in
+     * the combinatorial number system, from 0 to C(n, k)-1, and the index is
+     * the mixed-radix number made of the four ranks.
+     */
+
+    /**
+     * Gets the number of states of a table.
+     */
+    static long getSize(int signature) {
+        int free = GameState.NUMBER_OF_SQUARES;
+        long size = BINOMIAL[free][getRedMen(signature)];
+        free -= getRedMen(signature);
+        size *= BINOMIAL[free][getWhiteMen(signature)];
+        free -= getWhiteMen(signature);
+        size *= BINOMIAL[free][getRedKings(signature)];
+        free -= getRedKings(signature);
+        return size * BINOMIAL[free][getWhiteKings(signature)];
+    }
+
+    /**
+     * Gets the number of bytes of a table.
+     */
+    static long getBytes(int signature) {
+        return (getSize(signature) + 3) / 4;
+    }
+
+    /**
+     * Gets the index of a state with red moving in its table.
+     */
+    static long index(int red, int white, int kings) {
+        int redMen = red & ~kings, whiteMen = white & ~kings, redKings = red & kings;
+        int free = ~0;
+        long index = place(0, redMen, free);
+        free &= ~redMen;
+        index = place(index, whiteMen, free);
+        free &= ~whiteMen;
+        index = place(index, redKings, free);
+        free &= ~redKings;
+        return place(index, white & kings, free);
+    }
+
+    /**
+     * Adds the rank of the placement of pieces on the free squares to an
+     * index, as its least significant digit.
+     */
+    private static long place(long index, int pieces, int free) {
+        return index * BINOMIAL[Integer.bitCount(free)][Integer.bitCount(pieces)] + rank(pieces, free);
+    }
+
+    /**
+     * Gets the state with red moving with a certain index in a table (the
+     * inverse of index()).
+     *
+     * @param bitboards
+     *            filled with the cells holding a red piece, a white piece and
+     *            a king
+     */
+    static void getState(int signature, long index, int[] bitboards) {
+        int redMen = getRedMen(signature), whiteMen = getWhiteMen(signature);
+        int redKings = getRedKings(signature), whiteKings = getWhiteKings(signature);
+        long whiteKingsRadix = BINOMIAL[GameState.NUMBER_OF_SQUARES - redMen - whiteMen - redKings][whiteKings];
+        long redKingsRadix = BINOMIAL[GameState.NUMBER_OF_SQUARES - redMen - whiteMen][redKings];
+        long whiteMenRadix = BINOMIAL[GameState.NUMBER_OF_SQUARES - redMen][whiteMen];
+
+        long whiteKingsRank = index % whiteKingsRadix;
+        index /= whiteKingsRadix;
+        long redKingsRank = index % redKingsRadix;
+        index /= redKingsRadix;
+        long whiteMenRank = index % whiteMenRadix;
+        index /= whiteMenRadix;
+
+        int free = ~0;
+        int red = unrank(index, redMen, free);
+        free &= ~red;
+        int white = unrank(whiteMenRank, whiteMen, free);
+        free &= ~white;
+        int kings = unrank(redKingsRank, redKings, free);
+        free &= ~kings;
+        red |= kings;
+        int kingsOfWhite = unrank(whiteKingsRank, whiteKings, free);
+        bitboards[0] = red;
+        bitboards[1] = white | kingsOfWhite;
+        bitboards[2] = kings | kingsOfWhite;
+    }
+
+    /**
+     * Gets the rank of a placement of pieces on the free squares.
+     */
+    private static long rank(int pieces, int free) {
+        long rank = 0;
+        int k = 1;
+        for (int b = pieces; b != 0; b &= b - 1, k++) {
+            int square = Integer.bitCount(free & ((b & -b) - 1));    // among the free ones
+            rank += BINOMIAL[square][k];
+        }
+        return rank;
+    }
+
+    /**
+     * Gets the placement of k pieces on the free squares with a certain rank
+     * (the inverse of rank()).
+     */
+    static int unrank(long rank, int k, int free) {
+        int pieces = 0;
+        int square = Integer.bitCount(free);
+        for (; k > 0; k--) {
+            do {
+                square--;
+            } while (BINOMIAL[square][k] > rank);
+            rank -= BINOMIAL[square][k];
+            pieces |= select(free, square);
+        }
+        return pieces;
+    }
+
+    /**
+     * Gets the i-th (from 0) set bit of a bitboard.
+     */
+    private static int select(int bits, int i) {
+        for (; i > 0; i--)
+            bits &= bits - 1;
+        return bits & -bits;
+    }
+
+}
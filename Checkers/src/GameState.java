@@ -1,3 +1,5 @@
+import java.util.Arrays;
+import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
@@ -45,32 +47,103 @@ public class GameState {
   public static final int NUMBER_OF_SQUARES = 32; // 32 valid squares
   public static final int PIECES_PER_PLAYER = 12; // 12 pieces per player
   public static final int MOVES_UNTIL_DRAW = 50; // 25 moves per player
+  public static final int MAX_MOVES = 256; // more than the moves in any position
 
-  private int[] mCell = new int[GameState.NUMBER_OF_SQUARES];
+  /**
+   * Directions used by the bitboard shifts, as seen from the top of the board
+   * (i.e. "down" is the direction in which the red pieces move).
+   *
+   * Note that opposite directions add up to 3, so 3-d is the reverse of d.
+   */
+  static final int DOWN_LEFT  = 0;
+  static final int DOWN_RIGHT = 1;
+  static final int UP_LEFT    = 2;
+  static final int UP_RIGHT   = 3;
+
+  /* Masks of the squares in the even rows (0,2,4,6) and in the odd rows */
+  private static final int EVEN_ROWS = 0x0F0F0F0F;
+  private static final int ODD_ROWS  = 0xF0F0F0F0;
+  /* Masks of the first and of the last square of every row */
+  private static final int FIRST_IN_ROW = 0x11111111;
+  private static final int LAST_IN_ROW  = 0x88888888;
+  /* Masks of the rows where white and red pieces, respectively, become kings */
+  private static final int FIRST_ROW = 0x0000000F;
+  private static final int LAST_ROW  = 0xF0000000;
+
+  /*
+   * Neighbours of every cell (NEIGHBORS[4*cell + direction]), and cells
+   * reached jumping over them (JUMPS[4*cell + direction]), -1 if they fall
+   * outside of the board. The cell jumped over is the neighbour.
+   */
+  static final int[] NEIGHBORS = new int[4 * NUMBER_OF_SQUARES];
+  static final int[] JUMPS = new int[4 * NUMBER_OF_SQUARES];
+  static {
+    for (int i = 0; i < NUMBER_OF_SQUARES; i++) {
+      for (int d = DOWN_LEFT; d <= UP_RIGHT; d++) {
+        int lNeighbor = GameState.shift(1 << i, d);
+        int lJump = GameState.shift(lNeighbor, d);
+        NEIGHBORS[4 * i + d] = lNeighbor == 0 ? -1 : Integer.numberOfTrailingZeros(lNeighbor);
+        JUMPS[4 * i + d] = lJump == 0 ? -1 : Integer.numberOfTrailingZeros(lJump);
+      }
+    }
+  }
+
+  /* Size of a level of the stack of tryJump() */
+  private static final int JUMP_LEVEL = 5;
+
+  /*
+   * The board is stored as three bitboards, where bit i refers to cell i.
+   * A cell is empty if its bit is set neither in mRed nor in mWhite.
+   */
+  private int mRed;    // Cells holding a red piece (king or not)
+  private int mWhite;  // Cells holding a white piece (king or not)
+  private int mKings;  // Cells holding a king of either colour
   private int mMovesUntilDraw;
   private int mNextPlayer;
-  private Move mLastMove;
+  private long mLastMove;  // Packed as described in Move
+  private long mHash;      // Zobrist hash, see hash()
+
+  /*
+   * Random keys for Zobrist hashing: one for each kind of piece (red, white,
+   * red king, white king) on each cell, one for white to move and one for the
+   * end of game. The seed is fixed, so that hashes are the same in every run.
+   */
+  private static final long[][] ZOBRIST_PIECES = new long[4][NUMBER_OF_SQUARES];
+  private static final long ZOBRIST_WHITE;
+  private static final long ZOBRIST_EOG;
+  static {
+    Random lRandom = new Random(0x5EED);
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < NUMBER_OF_SQUARES; j++) {
+        ZOBRIST_PIECES[i][j] = lRandom.nextLong();
+      }
+    }
+    ZOBRIST_WHITE = lRandom.nextLong();
+    ZOBRIST_EOG = lRandom.nextLong();
+  }
+
+  /* Last moves replaced by makeMove(), to be restored by unmakeMove() */
+  private long[] mMoveHistory;
+  private int mHistoryLength;
+
+  /* Stack of tryJump(), allocated the first time it's needed */
+  private int[] mJumpStack;
+  private long[] mJumpMoves;
 
   /**
    * Initialises the board to the starting position.
    */
   public GameState() {
     /* Initialise the board */
-    for(int i = 0; i < GameState.PIECES_PER_PLAYER; i++) {
-      this.mCell[i] = Constants.CELL_RED;
-      this.mCell[NUMBER_OF_SQUARES-1-i] = Constants.CELL_WHITE;
-    }
-
-    for(int i = GameState.PIECES_PER_PLAYER;
-        i < GameState.NUMBER_OF_SQUARES - GameState.PIECES_PER_PLAYER;
-        i++) {
-      this.mCell[i] = Constants.CELL_EMPTY;
-    }
+    this.mRed = (1 << GameState.PIECES_PER_PLAYER) - 1;
+    this.mWhite = this.mRed << (NUMBER_OF_SQUARES - GameState.PIECES_PER_PLAYER);
+    this.mKings = 0;
 
     // Initialise move related variables
-    this.mLastMove = new Move(Move.MOVE_BOG);
+    this.mLastMove = Move.pack(Move.MOVE_BOG);
     this.mMovesUntilDraw = GameState.MOVES_UNTIL_DRAW;
     this.mNextPlayer = Constants.CELL_RED;
+    this.mHash = this.computeHash();
   }
 
   /**
@@ -99,15 +172,15 @@ public class GameState {
     // Parse the board
     for (int i = 0; i < GameState.NUMBER_OF_SQUARES; i++) {
       if (board.charAt(i) == Constants.MESSAGE_SYMBOLS[Constants.CELL_EMPTY]) {
-        this.mCell[i] = Constants.CELL_EMPTY;
+        this.set(i, Constants.CELL_EMPTY);
       } else if (board.charAt(i) == Constants.MESSAGE_SYMBOLS[Constants.CELL_RED]) {
-        this.mCell[i] = Constants.CELL_RED;
+        this.set(i, Constants.CELL_RED);
       } else if (board.charAt(i) == Constants.MESSAGE_SYMBOLS[Constants.CELL_WHITE]) {
-        this.mCell[i] = Constants.CELL_WHITE;
+        this.set(i, Constants.CELL_WHITE);
       } else if (board.charAt(i) == Constants.MESSAGE_SYMBOLS[Constants.CELL_RED | Constants.CELL_KING]) {
-        this.mCell[i] = Constants.CELL_RED | Constants.CELL_KING;
+        this.set(i, Constants.CELL_RED | Constants.CELL_KING);
       } else if (board.charAt(i) == Constants.MESSAGE_SYMBOLS[Constants.CELL_WHITE | Constants.CELL_KING]) {
-        this.mCell[i] = Constants.CELL_WHITE | Constants.CELL_KING;
+        this.set(i, Constants.CELL_WHITE | Constants.CELL_KING);
       } else {
         // ???
         //assert("Invalid cell" && false);
@@ -115,7 +188,7 @@ public class GameState {
     }
 
     // Parse last move
-    this.mLastMove = new Move(last_move);
+    this.mLastMove = new Move(last_move).pack();
 
     // Parse next player
     if (next_player.charAt(0) == Constants.MESSAGE_SYMBOLS[Constants.CELL_EMPTY]) {
@@ -135,6 +208,42 @@ public class GameState {
 
     // Set number of moves left until draw
     this.mMovesUntilDraw = moves_left;
+
+    this.mHash = this.computeHash();
+  }
+
+  /**
+   * Constructs a board from its bitboards, with the number of moves until
+   * draw reset (e.g. for enumerating the states of an endgame).
+   *
+   * @param pRed the cells holding a red piece
+   * @param pWhite the cells holding a white piece
+   * @param pKings the cells holding a king of either colour
+   * @param pNextPlayer the player to move
+   */
+  GameState(int pRed, int pWhite, int pKings, int pNextPlayer) {
+    this.mRed = pRed;
+    this.mWhite = pWhite;
+    this.mKings = pKings;
+    this.mLastMove = Move.pack(Move.MOVE_BOG);
+    this.mMovesUntilDraw = GameState.MOVES_UNTIL_DRAW;
+    this.mNextPlayer = pNextPlayer;
+    this.mHash = this.computeHash();
+  }
+
+  /**
+   * Constructs a copy of board pRH.
+   *
+   * @param pRH the board to copy
+   */
+  public GameState(final GameState pRH) {
+    this.mRed   = pRH.mRed;
+    this.mWhite = pRH.mWhite;
+    this.mKings = pRH.mKings;
+    this.mMovesUntilDraw = pRH.mMovesUntilDraw;
+    this.mNextPlayer   = pRH.mNextPlayer;
+    this.mLastMove     = pRH.mLastMove;
+    this.mHash         = pRH.mHash;
   }
 
   /**
@@ -147,12 +256,15 @@ public class GameState {
    */
   public GameState(final GameState pRH, final Move pMove) {
     /* Copy board */
-    this.mCell = pRH.mCell.clone();
+    this.mRed   = pRH.mRed;
+    this.mWhite = pRH.mWhite;
+    this.mKings = pRH.mKings;
 
     /* Copy move status */
     this.mMovesUntilDraw = pRH.mMovesUntilDraw;
     this.mNextPlayer   = pRH.mNextPlayer;
     this.mLastMove     = pRH.mLastMove;
+    this.mHash         = pRH.mHash;
 
     /* Perform move */
     this.doMove(pMove);
@@ -166,19 +278,16 @@ public class GameState {
   GameState reversed() {
     /* Create new GameState */
     GameState result = new GameState();
-    for (int i = 0; i < NUMBER_OF_SQUARES; i++) {
-      if (this.mCell[31-i] == Constants.CELL_EMPTY) {
-        result.mCell[i] = Constants.CELL_EMPTY;
-      } else {
-        result.mCell[i] = this.mCell[31-i] ^
-        			(Constants.CELL_RED | Constants.CELL_WHITE);
-      }
-    }
+    /* Reversing the bits maps cell i to cell 31-i */
+    result.mRed   = Integer.reverse(this.mWhite);
+    result.mWhite = Integer.reverse(this.mRed);
+    result.mKings = Integer.reverse(this.mKings);
 
-    result.mLastMove = this.mLastMove.reversed();
+    result.mLastMove = new Move(this.mLastMove).reversed().pack();
     result.mNextPlayer = this.mNextPlayer ^
     			(Constants.CELL_RED | Constants.CELL_WHITE);
     result.mMovesUntilDraw = this.mMovesUntilDraw;
+    result.mHash = result.computeHash();
     return result;
   }
 
@@ -205,7 +314,10 @@ public class GameState {
      * wrong. */
     assert(pPos >= 0);
     assert(pPos < NUMBER_OF_SQUARES);
-    return mCell[pPos];
+    /* CELL_RED, CELL_WHITE and CELL_KING are bits 0, 1 and 2 respectively */
+    return ((mRed >>> pPos) & 1) |
+           (((mWhite >>> pPos) & 1) << 1) |
+           (((mKings >>> pPos) & 1) << 2);
   }
 
   /**
@@ -216,7 +328,11 @@ public class GameState {
      * wrong. */
     assert(pPos >= 0);
     assert(pPos < NUMBER_OF_SQUARES);
-    mCell[pPos] = v;
+    int lBit = 1 << pPos;
+    mHash ^= GameState.cellKey(pPos, this.get(pPos)) ^ GameState.cellKey(pPos, v);
+    mRed   = (v & Constants.CELL_RED)   != 0 ? mRed | lBit   : mRed & ~lBit;
+    mWhite = (v & Constants.CELL_WHITE) != 0 ? mWhite | lBit : mWhite & ~lBit;
+    mKings = (v & Constants.CELL_KING)  != 0 ? mKings | lBit : mKings & ~lBit;
   }
 
   /**
@@ -243,19 +359,155 @@ public class GameState {
       return Constants.CELL_INVALID;
     }
 
-    return this.mCell[pR * 4 + (pC >> 1)];
+    return this.get(pR * 4 + (pC >> 1));
   }
 
   /**
-   * Sets the content of a cell in the board, from row and column number.
-   * 
-   * Note that this is a private function.
+   * Gets the bitboard of the pieces (kings included) of a player.
+   *
+   * @param pPlayer CELL_RED or CELL_WHITE
    */
-  private void set(int pR, int pC, int v) {
-    /* This is a bit ugly, but is useful for the implementation of
-     * FindPossibleMoves. It won't affect single-threaded programs
-     * and you're not allowed to use threads anyway. */
-    this.mCell[pR * 4 + (pC >> 1)] = v;
+  final int getPieces(int pPlayer) {
+    return pPlayer == Constants.CELL_RED ? mRed : mWhite;
+  }
+
+  /**
+   * Gets the bitboard of the kings of both players.
+   */
+  final int getKings() {
+    return mKings;
+  }
+
+  /**
+   * Gets the Zobrist hash of the state.
+   *
+   * The hash depends on the pieces on the board, on the next player and on
+   * whether the game is over, but not on the number of moves until draw. It
+   * is kept up to date incrementally by doMove(), makeMove() and
+   * unmakeMove().
+   */
+  final long hash() {
+    return mHash;
+  }
+
+  /**
+   * Gets the Zobrist hash of the state after a (packed) move, without
+   * performing it.
+   *
+   * @param pMove the move, returned by FindPossibleMoves
+   */
+  long hashAfter(long pMove) {
+    long lHash = mHash ^ GameState.eogKey(mLastMove) ^
+        GameState.eogKey(pMove) ^ ZOBRIST_WHITE;
+    if (Move.isJump(pMove) || Move.isNormal(pMove)) {
+      int lFrom = 1 << Move.from(pMove);
+      int lTo = 1 << Move.to(pMove);
+      boolean lRed = 0 != (mRed & lFrom);
+      boolean lKing = 0 != (mKings & lFrom) ||
+          0 != (lTo & (lRed ? LAST_ROW : FIRST_ROW));
+      lHash ^= GameState.moveKey(lFrom, lTo, Move.captured(pMove), lRed,
+          mKings, lKing ? mKings | lTo : mKings & ~lTo);
+    }
+    return lHash;
+  }
+
+  /**
+   * Computes the Zobrist hash of the state from scratch.
+   */
+  private long computeHash() {
+    long lHash = GameState.eogKey(mLastMove);
+    if (mNextPlayer == Constants.CELL_WHITE) {
+      lHash ^= ZOBRIST_WHITE;
+    }
+    for (int i = 0; i < NUMBER_OF_SQUARES; i++) {
+      lHash ^= GameState.cellKey(i, this.get(i));
+    }
+    return lHash;
+  }
+
+  /**
+   * Gets the Zobrist key of the content of a cell (0 if it is empty).
+   */
+  private static long cellKey(int pCell, int pContent) {
+    if ((pContent & (Constants.CELL_RED | Constants.CELL_WHITE)) == 0) {
+      return 0;
+    }
+    return GameState.pieceKey(pCell, (pContent & Constants.CELL_RED) != 0,
+        (pContent & Constants.CELL_KING) != 0);
+  }
+
+  /**
+   * Gets the Zobrist key of a piece on a cell.
+   */
+  private static long pieceKey(int pCell, boolean pRed, boolean pKing) {
+    return ZOBRIST_PIECES[(pRed ? 0 : 1) + (pKing ? 2 : 0)][pCell];
+  }
+
+  /**
+   * Gets the Zobrist key of the end of game, if the last move marks it.
+   */
+  private static long eogKey(long pLastMove) {
+    return Move.isEOG(pLastMove) ? ZOBRIST_EOG : 0;
+  }
+
+  /**
+   * Gets the change of the Zobrist hash caused by moving a piece (which
+   * works both ways, since keys are combined with xor).
+   *
+   * @param pFrom the bitboard of the starting cell
+   * @param pTo the bitboard of the destination cell
+   * @param pCaptured the bitboard of the captured pieces
+   * @param pRed true if the moving piece is red
+   * @param pKingsBefore the bitboard of the kings before the move
+   * @param pKingsAfter the bitboard of the kings after the move
+   */
+  private static long moveKey(int pFrom, int pTo, int pCaptured, boolean pRed,
+      int pKingsBefore, int pKingsAfter) {
+    long lKey = GameState.pieceKey(Integer.numberOfTrailingZeros(pFrom), pRed,
+        0 != (pKingsBefore & pFrom));
+    lKey ^= GameState.pieceKey(Integer.numberOfTrailingZeros(pTo), pRed,
+        0 != (pKingsAfter & pTo));
+    for (int b = pCaptured; b != 0; b &= b - 1) {
+      int lCell = Integer.numberOfTrailingZeros(b);
+      lKey ^= GameState.pieceKey(lCell, !pRed, 0 != (pKingsBefore & (1 << lCell)));
+    }
+    return lKey;
+  }
+
+  /**
+   * Shifts all the cells of a bitboard by one step in a diagonal direction.
+   *
+   * Cells whose neighbour in that direction falls outside of the board are
+   * dropped.
+   *
+   * @param pBoard the bitboard to shift
+   * @param pDirection one of DOWN_LEFT, DOWN_RIGHT, UP_LEFT or UP_RIGHT
+   * @return the bitboard of the neighbours
+   */
+  static int shift(int pBoard, int pDirection) {
+    switch (pDirection) {
+    case DOWN_LEFT:
+      return ((pBoard & EVEN_ROWS) << 4) | ((pBoard & ODD_ROWS & ~FIRST_IN_ROW) << 3);
+    case DOWN_RIGHT:
+      return ((pBoard & EVEN_ROWS & ~LAST_IN_ROW) << 5) | ((pBoard & ODD_ROWS) << 4);
+    case UP_LEFT:
+      return ((pBoard & EVEN_ROWS) >>> 4) | ((pBoard & ODD_ROWS & ~FIRST_IN_ROW) >>> 5);
+    default: // UP_RIGHT
+      return ((pBoard & EVEN_ROWS & ~LAST_IN_ROW) >>> 3) | ((pBoard & ODD_ROWS) >>> 4);
+    }
+  }
+
+  /**
+   * Gets the pieces of the player making the move which are allowed to
+   * move in a certain direction.
+   */
+  private int getMovers(int pDirection) {
+    int lOwn = getPieces(mNextPlayer);
+    boolean lDown = pDirection == DOWN_LEFT || pDirection == DOWN_RIGHT;
+    if (lDown == (mNextPlayer == Constants.CELL_RED)) {
+      return lOwn;
+    }
+    return lOwn & mKings;
   }
 
 
@@ -306,131 +558,109 @@ public class GameState {
     return (pRow * 4 + (pCol >> 1));
   }
 
-  private boolean tryJump(Vector<Move> pMoves, int pR, int pC, boolean pKing,
-      int[] pBuffer) {
-    return this.tryJump(pMoves, pR, pC, pKing, pBuffer, 0);
-  }
-  
   /**
    * Tries to make a jump (capture a piece) from a certain position of the
-   * board.
+   * board, and inserts the valid jump sequences into an array.
+   *
+   * The sequences are explored depth-first with an explicit stack, where
+   * each level holds the cell reached, the cells which are empty at that
+   * point, the pieces that can still be captured, the next direction to try
+   * and whether any jump was found from there. The capturing piece and the
+   * pieces captured so far are not removed from the board, they are just
+   * considered empty cells.
    *
-   * @param pMoves a vector where the valid moves will be inserted
-   * @param pOther the ECell code corresponding to the player who is not 
-   * 		making the move
-   * @param pR the row of the cell we are capturing from
-   * @param pC the column we are capturing from
+   * @param pMoves an array where the valid (packed) moves will be inserted
+   * @param pCount the number of moves already in pMoves
+   * @param pCell the cell we are capturing from
    * @param pKing true if the capturing piece is a king
-   * @param pBuffer a buffer where the list of jump positions is
-   * 		inserted (for multiple jumps)
-   * @param pDepth the number of multiple jumps before this attempt
-   */
-  private boolean tryJump(Vector<Move> pMoves, int pR, int pC, boolean pKing, 
-  		int[] pBuffer, int pDepth) {
-    /* Remove the capturing piece temporarily */
-    int lOldSelf = this.get(pR, pC);
-    this.set(pR, pC, Constants.CELL_EMPTY);
-
-    pBuffer[pDepth] = GameState.rowColToCell(pR, pC);
-
-    boolean lFound = false;
-    int lOther = mNextPlayer ^ (Constants.CELL_WHITE | Constants.CELL_RED);
-
-    // Try capturing downwards
-    if(mNextPlayer == Constants.CELL_RED || pKing) {
-      // Try capturing left
-      if( 0 != (this.get(pR+1, pC-1) & lOther) &&
-    		  	this.get(pR+2,pC-2) == Constants.CELL_EMPTY) {
-        lFound = true;
-        int lOldValue = get(pR+1, pC-1);
-        this.set(pR+1, pC-1, Constants.CELL_EMPTY);
-        this.tryJump(pMoves, pR+2, pC-2, pKing, pBuffer, pDepth + 1);
-        this.set(pR+1, pC-1, lOldValue);
+   * @param pEmpty the bitboard of the empty cells (the capturing piece's
+   *     included)
+   * @param pOther the bitboard of the pieces that can be captured
+   * @return the number of moves in pMoves
+   */
+  private int tryJump(long[] pMoves, int pCount, int pCell, boolean pKing,
+      int pEmpty, int pOther) {
+    if (mJumpStack == null) {
+      mJumpStack = new int[JUMP_LEVEL * (Move.MAX_JUMPS + 1)];
+      mJumpMoves = new long[Move.MAX_JUMPS + 1];
+    }
+    int[] lStack = mJumpStack;
+    boolean lRed = mNextPlayer == Constants.CELL_RED;
+
+    int lTop = 0;
+    lStack[0] = pCell;
+    lStack[1] = pEmpty;
+    lStack[2] = pOther;
+    lStack[3] = DOWN_LEFT;
+    lStack[4] = 0;
+    mJumpMoves[0] = Move.packJump(pCell);
+
+    while (lTop >= 0) {
+      int lLevel = lTop * JUMP_LEVEL;
+      int d = lStack[lLevel + 3]++;
+
+      // Every direction tried: the sequence ends here if it can't go on
+      if (d > UP_RIGHT) {
+        if (lStack[lLevel + 4] == 0 && lTop > 0) {
+          pMoves[pCount++] = mJumpMoves[lTop];
+        }
+        lTop--;
+        continue;
       }
 
-      // Try capturing right
-      if( 0 != (this.get(pR+1, pC+1) & lOther) &&
-    		  	this.get(pR+2,pC+2) == Constants.CELL_EMPTY) {
-        lFound = true;
-        int lOldValue = this.get(pR+1, pC+1);
-        this.set(pR+1, pC+1, Constants.CELL_EMPTY);
-        this.tryJump(pMoves, pR+2, pC+2, pKing, pBuffer, pDepth + 1);
-        this.set(pR+1, pC+1, lOldValue);
+      // Try capturing in every allowed direction (downwards first)
+      if (!pKing && (d <= DOWN_RIGHT) != lRed) {
+        continue;
       }
-    }
-
-    // Try capturing upwards
-    if(mNextPlayer == Constants.CELL_WHITE || pKing) {
-      // Try capturing left
-      if( 0 != (this.get(pR-1, pC-1) & lOther) &&
-    		  	this.get(pR-2, pC-2) == Constants.CELL_EMPTY) {
-        lFound = true;
-        int lOldValue = this.get(pR-1, pC-1);
-        this.set(pR-1, pC-1, Constants.CELL_EMPTY);
-        this.tryJump(pMoves, pR-2, pC-2, pKing, pBuffer, pDepth + 1);
-        this.set(pR-1, pC-1, lOldValue);
+      int lTo = JUMPS[4 * lStack[lLevel] + d];
+      // A move can't hold more than MAX_JUMPS jumps
+      if (lTo < 0 || lTop == Move.MAX_JUMPS) {
+        continue;
       }
-      // Try capturing right
-      if( 0 != (this.get(pR-1, pC+1) & lOther) &&
-    		  	this.get(pR-2, pC+2) == Constants.CELL_EMPTY) {
-        lFound = true;
-        int lOldValue = this.get(pR-1, pC+1);
-        this.set(pR-1, pC+1, Constants.CELL_EMPTY);
-        this.tryJump(pMoves, pR-2, pC+2, pKing, pBuffer, pDepth + 1);
-        this.set(pR-1, pC+1, lOldValue);
+      int lOver = 1 << NEIGHBORS[4 * lStack[lLevel] + d];
+      if (0 == (lStack[lLevel + 2] & lOver) || 0 == (lStack[lLevel + 1] & (1 << lTo))) {
+        continue;
       }
-    }
 
-    /* Restore the capturing piece */
-    this.set(pR, pC, lOldSelf);
-
-    if(!lFound && pDepth > 0) {
-      Vector<Integer> tmp = new Vector<Integer>();
-      for (int z : pBuffer) {
-        tmp.add(z);
-      }
-      pMoves.add(new Move(tmp, pDepth+1));
+      lStack[lLevel + 4] = 1;
+      int lNext = lLevel + JUMP_LEVEL;
+      lStack[lNext] = lTo;
+      lStack[lNext + 1] = lStack[lLevel + 1] | lOver;
+      lStack[lNext + 2] = lStack[lLevel + 2] & ~lOver;
+      lStack[lNext + 3] = DOWN_LEFT;
+      lStack[lNext + 4] = 0;
+      mJumpMoves[lTop + 1] = Move.appendJump(mJumpMoves[lTop], d, lOver);
+      lTop++;
     }
-    return lFound;
+    return pCount;
   }
 
   /**
    * Tries to make a move from a certain position, and inserts valid move
-   * choices into a vector.
+   * choices into an array.
    *
-   * @param pMoves vector where the valid moves will be inserted
+   * @param pMoves array where the valid (packed) moves will be inserted
+   * @param pCount the number of moves already in pMoves
    * @param pCell the cell where the move is tried from
-   * @param pOther the ECell code corresponding to the player
-   *     who is not making the move
    * @param pKing true if the piece is a king
+   * @return the number of moves in pMoves
    */
-  void tryMove(Vector<Move> pMoves, int pCell, boolean pKing) {
-    int lR = GameState.cellToRow(pCell);
-    int lC = GameState.cellToCol(pCell);
-    // Try moving downwards
-    if(mNextPlayer == Constants.CELL_RED || pKing) {
-      // Try moving right
-      if(this.get(lR+1,lC-1) == Constants.CELL_EMPTY) {
-        pMoves.add(new Move(pCell, GameState.rowColToCell(lR+1, lC-1)));
+  int tryMove(long[] pMoves, int pCount, int pCell, boolean pKing) {
+    int lEmpty = ~(mRed | mWhite);
+    boolean lRed = mNextPlayer == Constants.CELL_RED;
+
+    // Try moving in every allowed direction (downwards first)
+    for (int d = DOWN_LEFT; d <= UP_RIGHT; d++) {
+      if (!pKing && (d <= DOWN_RIGHT) != lRed) {
+        continue;
       }
 
-      //try moving left
-      if(this.get(lR+1, lC+1) == Constants.CELL_EMPTY) {
-        pMoves.add(new Move(pCell, GameState.rowColToCell(lR+1, lC+1)));
-      }
-    }
-
-    // Try moving upwards
-    if(mNextPlayer == Constants.CELL_WHITE || pKing) {
-      // Try moving right
-      if(this.get(lR-1, lC-1) == Constants.CELL_EMPTY) {
-        pMoves.add(new Move(pCell, GameState.rowColToCell(lR-1, lC-1)));
-      }
-      // Try moving left
-      if(this.get(lR-1, lC+1) == Constants.CELL_EMPTY) {
-        pMoves.add(new Move(pCell, GameState.rowColToCell(lR-1,lC+1)));
+      int lTo = NEIGHBORS[4 * pCell + d];
+      if (lTo >= 0 && 0 != (lEmpty & (1 << lTo))) {
+        pMoves[pCount++] = Move.pack(pCell, d);
       }
     }
+    return pCount;
   }
 
   /**
@@ -442,54 +672,185 @@ public class GameState {
   void findPossibleMoves(Vector<GameState> pStates) {
     pStates.clear();
 
-    if (mLastMove.isEOG()) {
-      return;
+    long[] lMoves = new long[GameState.MAX_MOVES];
+    int lNumMoves = this.findPossibleMoves(lMoves);
+
+    // Convert moves to GameStates
+    for (int i = 0; i < lNumMoves; i++) {
+      pStates.add(new GameState(this, new Move(lMoves[i])));
+    }
+  }
+
+  /**
+   * Finds possible moves, packed as described in Move, without allocating
+   * anything.
+   *
+   * The moves are the same, in the same order, as the ones that lead to the
+   * states found by findPossibleMoves(Vector).
+   *
+   * @param pMoves array of at least MAX_MOVES elements where the moves are
+   *     stored
+   * @return the number of moves found
+   */
+  int findPossibleMoves(long[] pMoves) {
+    if (Move.isEOG(mLastMove)) {
+      return 0;
     }
 
     if (mMovesUntilDraw <= 0) {
-      pStates.add(new GameState(this, new Move(Move.MOVE_DRAW)));
-      return;
+      pMoves[0] = Move.pack(Move.MOVE_DRAW);
+      return 1;
     }
 
     // Normal moves are forbidden if any jump is possible
-    boolean lFound = false;
-    int[] lPieces = new int[GameState.PIECES_PER_PLAYER];
-    int[] lMoveBuffer = new int[GameState.PIECES_PER_PLAYER];
-    Vector<Move> lMoves = new Vector<Move>();
+    int lNumMoves = this.findJumps(pMoves);
+    if (lNumMoves == 0) {
+      lNumMoves = this.findNormalMoves(pMoves);
+    }
 
-    int lNumPieces=0;
-    for (int i = 0; i < NUMBER_OF_SQUARES; i++) {
-      // Is this a piece which belongs to the player making the move?
-      if (0 != (this.get(i) & mNextPlayer)) {
-        boolean lIsKing = 0 != (this.get(i) & Constants.CELL_KING);
+    // Admit loss if no moves can be found
+    if (lNumMoves == 0) {
+      pMoves[lNumMoves++] = this.getLossMove();
+    }
+    return lNumMoves;
+  }
 
-        if (this.tryJump(lMoves, GameState.cellToRow(i), GameState.cellToCol(i),
-        				 lIsKing, lMoveBuffer)) {
-          lFound=true;
-        }
-        lPieces[lNumPieces++]=i;
-      }
+  /**
+   * Finds the jumps of the player making the move (without the pseudo-moves
+   * ending the game, see findPossibleMoves()).
+   *
+   * @param pMoves array of at least MAX_MOVES elements where the moves are
+   *     stored
+   * @return the number of moves found
+   */
+  int findJumps(long[] pMoves) {
+    int lOther = getPieces(mNextPlayer ^ (Constants.CELL_RED | Constants.CELL_WHITE));
+    int lEmpty = ~(mRed | mWhite);
+    int lNumMoves = 0;
+    for (int b = this.getJumpers(); b != 0; b &= b - 1) {
+      int lCell = Integer.numberOfTrailingZeros(b);
+      boolean lIsKing = 0 != (mKings & (1 << lCell));
+      lNumMoves = this.tryJump(pMoves, lNumMoves, lCell, lIsKing,
+          lEmpty | (1 << lCell), lOther);
     }
+    return lNumMoves;
+  }
 
-    // Try normal moves if no possible jump was found
-    if (!lFound) {
-      for (int k = 0; k < lNumPieces; k++) {
-        int lCell = lPieces[k];
-        boolean lIsKing = 0 != (this.get(lCell) & Constants.CELL_KING);
-        this.tryMove(lMoves, lCell, lIsKing);
-      }
+  /**
+   * Finds the normal moves of the player making the move, which are only
+   * legal if findJumps() finds nothing.
+   *
+   * @param pMoves array of at least MAX_MOVES elements where the moves are
+   *     stored
+   * @return the number of moves found
+   */
+  int findNormalMoves(long[] pMoves) {
+    int lEmpty = ~(mRed | mWhite);
+    int lMovers = 0;
+    for (int d = DOWN_LEFT; d <= UP_RIGHT; d++) {
+      lMovers |= getMovers(d) & GameState.shift(lEmpty, UP_RIGHT - d);
     }
 
-    // Convert moves to GameStates
-    for (int i = 0; i < lMoves.size(); i++) {
-      pStates.add(new GameState(this, lMoves.elementAt(i)));
+    int lNumMoves = 0;
+    for (int b = lMovers; b != 0; b &= b - 1) {
+      int lCell = Integer.numberOfTrailingZeros(b);
+      boolean lIsKing = 0 != (mKings & (1 << lCell));
+      lNumMoves = this.tryMove(pMoves, lNumMoves, lCell, lIsKing);
     }
+    return lNumMoves;
+  }
 
-    // Admit loss if no moves can be found
-    if (pStates.size() == 0) {
-      pStates.add(new GameState(this, new Move(
-          mNextPlayer == Constants.CELL_WHITE ? Move.MOVE_RW : Move.MOVE_WW)));
+  /**
+   * Gets the pseudo-move by which the player making the move admits loss,
+   * when there are no moves.
+   */
+  long getLossMove() {
+    return Move.pack(
+        mNextPlayer == Constants.CELL_WHITE ? Move.MOVE_RW : Move.MOVE_WW);
+  }
+
+  /**
+   * Checks if the player making the move has to capture, without generating
+   * the jumps.
+   */
+  boolean hasJumps() {
+    return this.getJumpers() != 0;
+  }
+
+  /**
+   * Gets the pieces of the player making the move that can capture,
+   * shifting the whole board.
+   */
+  private int getJumpers() {
+    int lOther = getPieces(mNextPlayer ^ (Constants.CELL_RED | Constants.CELL_WHITE));
+    int lEmpty = ~(mRed | mWhite);
+    int lJumpers = 0;
+    for (int d = DOWN_LEFT; d <= UP_RIGHT; d++) {
+      int lBack = UP_RIGHT - d;
+      lJumpers |= getMovers(d) &
+          GameState.shift(GameState.shift(lEmpty, lBack) & lOther, lBack);
+    }
+    return lJumpers;
+  }
+
+  /**
+   * Checks if a (packed) normal move or jump is legal in this state, without
+   * generating the moves. Pseudo-moves are never considered legal.
+   *
+   * This is meant for moves found in previous searches (e.g. in the
+   * transposition table), which may come from other states.
+   */
+  boolean isLegal(long pMove) {
+    if (Move.isEOG(mLastMove) || mMovesUntilDraw <= 0) {
+      return false;
+    }
+
+    int lCell = Move.from(pMove);
+    int lPos = 1 << lCell;
+    int lEmpty = ~(mRed | mWhite);
+
+    if (Move.isNormal(pMove)) {
+      int d = Move.direction(pMove, 0);
+      return 0 != (getMovers(d) & lPos) && 0 != (GameState.shift(lPos, d) & lEmpty) &&
+          this.getJumpers() == 0;
+    }
+    if (!Move.isJump(pMove) || 0 == (getPieces(mNextPlayer) & lPos)) {
+      return false;
     }
+
+    // Follow the jumps, with the same rules as tryJump()
+    boolean lKing = 0 != (mKings & lPos);
+    boolean lRed = mNextPlayer == Constants.CELL_RED;
+    int lOther = getPieces(mNextPlayer ^ (Constants.CELL_RED | Constants.CELL_WHITE));
+    int lCaptured = 0;
+    int lJumps = Move.type(pMove);
+    lEmpty |= lPos;
+    for (int i = 0; i < lJumps; i++) {
+      int d = Move.direction(pMove, i);
+      if (!lKing && (d <= DOWN_RIGHT) != lRed) {
+        return false;
+      }
+      int lOver = GameState.shift(lPos, d) & lOther;
+      int lTo = GameState.shift(lOver, d) & lEmpty;
+      if (lTo == 0) {
+        return false;
+      }
+      lCaptured |= lOver;
+      lEmpty |= lOver;
+      lOther &= ~lOver;
+      lPos = lTo;
+    }
+
+    // The move can't stop while another jump is possible
+    for (int d = DOWN_LEFT; d <= UP_RIGHT && lJumps < Move.MAX_JUMPS; d++) {
+      if (lKing || (d <= DOWN_RIGHT) == lRed) {
+        int lOver = GameState.shift(lPos, d) & lOther;
+        if (0 != (GameState.shift(lOver, d) & lEmpty)) {
+          return false;
+        }
+      }
+    }
+    return lCaptured == Move.captured(pMove);
   }
 
   /**
@@ -501,72 +862,137 @@ public class GameState {
    * @param pMove the move to perform
    */
   public void doMove(final Move pMove) {
-    if (pMove.isJump()) {
-      // Row and column of source cell
-      int sr = GameState.cellToRow(pMove.at(0));
-      int sc = GameState.cellToCol(pMove.at(0));
-
-      // Perform all jumps
-      for(int i = 1; i < pMove.length(); i++) {
-        // Destination cell
-        int dr = GameState.cellToRow(pMove.at(i));
-        int dc = GameState.cellToCol(pMove.at(i));
-
-        // Move the jumping piece
-        this.set(pMove.at(i), this.get(pMove.at(i-1)));
-        this.set(pMove.at(i-1), Constants.CELL_EMPTY);
-
-        // Promote to king if we should
-        if (
-            (dr == 7 && 0 != (this.get(pMove.at(i)) & Constants.CELL_RED) )
-            ||
-            (dr == 0 && 0 != (this.get(pMove.at(i)) & Constants.CELL_WHITE) )
-          ) {
-
-          this.set(pMove.at(i), this.get(pMove.at(i)) | Constants.CELL_KING);
+    this.movePieces(pMove.pack());
 
-        }
+    // Remember last move and swap player
+    this.endMove(pMove.pack());
+  }
 
-        // Remove the piece being jumped over (captured)
-        this.set(
-            GameState.rowColToCell((sr+dr)>>1, (sc+dc)>>1),
-            Constants.CELL_EMPTY
-            );
+  /**
+   * Transforms the board in place by performing a (packed) move, in a way
+   * that can be reverted by unmakeMove().
+   *
+   * Note: This doesn't check that the move is valid, so you should only use
+   * it with moves returned by FindPossibleMoves.
+   *
+   * @param pMove the move to perform
+   * @return the information needed by unmakeMove() to undo the move
+   */
+  long makeMove(long pMove) {
+    long lUndo = (mKings & 0xFFFFFFFFL) | ((long) mMovesUntilDraw << 32);
+
+    // Remember last move, so that it can be restored
+    if (mMoveHistory == null) {
+      mMoveHistory = new long[64];
+    } else if (mHistoryLength == mMoveHistory.length) {
+      mMoveHistory = Arrays.copyOf(mMoveHistory, 2 * mHistoryLength);
+    }
+    mMoveHistory[mHistoryLength++] = mLastMove;
 
-        // Prepare for next jump
-        sr = dr;
-        sc = dc;
-      }
+    this.movePieces(pMove);
+    this.endMove(pMove);
 
-      // Reset number of moves left until draw
-      mMovesUntilDraw = MOVES_UNTIL_DRAW;
+    return lUndo;
+  }
 
-    } else if(pMove.isNormal()) {
-      // Move the piece
-      this.set(pMove.at(1), this.get(pMove.at(0)));
-      this.set(pMove.at(0), Constants.CELL_EMPTY);
+  /**
+   * Reverts the last move performed by makeMove().
+   *
+   * @param pMove the move to revert
+   * @param pUndo the value returned by makeMove()
+   */
+  void unmakeMove(long pMove, long pUndo) {
+    this.endMove(mMoveHistory[--mHistoryLength]);
 
-      // Promote to king if we should
-      int lDR = GameState.cellToRow(pMove.at(1));
-      if (
-          (lDR == 7 && 0 != (this.get(pMove.at(1)) & Constants.CELL_RED)) ||
-          (lDR == 0 && 0 != (this.get(pMove.at(1)) & Constants.CELL_WHITE))
-        ) {
-        this.set(pMove.at(1), this.get(pMove.at(1)) | Constants.CELL_KING);
+    if (Move.isJump(pMove) || Move.isNormal(pMove)) {
+      int lFrom = 1 << Move.from(pMove);
+      int lTo = 1 << Move.to(pMove);
+      int lCaptured = Move.captured(pMove);
 
-      }
+      mHash ^= GameState.moveKey(lFrom, lTo, lCaptured,
+          mNextPlayer == Constants.CELL_RED, (int) pUndo, mKings);
 
-      // Decrease number of moves left until draw
-      --mMovesUntilDraw;
+      // Put back the moving piece and the captured ones
+      if (mNextPlayer == Constants.CELL_RED) {
+        mRed = (mRed & ~lTo) | lFrom;
+        mWhite |= lCaptured;
+      } else {
+        mWhite = (mWhite & ~lTo) | lFrom;
+        mRed |= lCaptured;
+      }
+      mKings = (int) pUndo;
     }
 
-    // Remember last move
-    mLastMove = pMove;
+    mMovesUntilDraw = (int) (pUndo >>> 32);
+  }
 
-    // Swap player
+  /**
+   * Checks if a (packed) normal move or jump makes the moving piece a king.
+   */
+  boolean isPromotion(long pMove) {
+    int lFrom = 1 << Move.from(pMove);
+    if (0 != (mKings & lFrom) || Move.length(pMove) == 0) {
+      return false;
+    }
+    return 0 != ((1 << Move.to(pMove)) &
+        (0 != (mRed & lFrom) ? LAST_ROW : FIRST_ROW));
+  }
+
+  /**
+   * Sets the last move and swaps the next player, as the last step of a
+   * move (or, with the previous last move, of its undo).
+   */
+  private void endMove(long pLastMove) {
+    mHash ^= GameState.eogKey(mLastMove) ^ GameState.eogKey(pLastMove) ^
+        ZOBRIST_WHITE;
+    mLastMove = pLastMove;
     mNextPlayer = mNextPlayer ^ (Constants.CELL_RED | Constants.CELL_WHITE);
   }
 
+  /**
+   * Moves the pieces on the board according to a (packed) move, and updates
+   * the number of moves until draw.
+   */
+  private void movePieces(long pMove) {
+    if (Move.isJump(pMove) || Move.isNormal(pMove)) {
+      int lFrom = 1 << Move.from(pMove);
+      int lTo = 1 << Move.to(pMove);
+      int lCaptured = Move.captured(pMove);
+
+      // Promote to king if we should. A piece can't jump any further once it
+      // reaches the last row, so only the destination needs to be checked.
+      boolean lRed = 0 != (mRed & lFrom);
+      boolean lKing = 0 != (mKings & lFrom) ||
+          0 != (lTo & (lRed ? LAST_ROW : FIRST_ROW));
+
+      mHash ^= GameState.moveKey(lFrom, lTo, lCaptured, lRed, mKings,
+          lKing ? mKings | lTo : mKings & ~lTo);
+
+      // Remove the moving piece and the captured ones, then put back the
+      // moving piece on its destination
+      int lCleared = ~(lFrom | lCaptured);
+      mRed &= lCleared;
+      mWhite &= lCleared;
+      mKings &= lCleared;
+      if (lRed) {
+        mRed |= lTo;
+      } else {
+        mWhite |= lTo;
+      }
+      if (lKing) {
+        mKings |= lTo;
+      }
+
+      if (Move.isJump(pMove)) {
+        // Reset number of moves left until draw
+        mMovesUntilDraw = MOVES_UNTIL_DRAW;
+      } else {
+        // Decrease number of moves left until draw
+        --mMovesUntilDraw;
+      }
+    }
+  }
+
   /**
    * Converts the board to a human-readable string for printing purposes.
    *
@@ -583,17 +1009,9 @@ public class GameState {
     final String board_left = (cell_text == Constants.SIMPLE_TEXT) ? "| " : "│ ";
     final String board_right = (cell_text == Constants.SIMPLE_TEXT) ? "|" : "│";
 
-    int red_pieces = 0;
-    int white_pieces = 0;
-
     // Count pieces
-    for (int i = 0; i < NUMBER_OF_SQUARES; i++) {
-      if (0 != (this.get(i) & Constants.CELL_RED)) {
-        ++red_pieces;
-      } else if (0 != (this.get(i) & Constants.CELL_WHITE)) {
-        ++white_pieces;
-      }
-    }
+    int red_pieces = Integer.bitCount(mRed);
+    int white_pieces = Integer.bitCount(mWhite);
 
     /* Use a StringBuffer to compose the string */
     StringBuffer ss = new StringBuffer();
@@ -618,7 +1036,7 @@ public class GameState {
     for(int c = 0; c < 8; c++) {
       ss.append(cell_text[this.get(2, c)]);
     }
-    ss.append(board_right + " 11   Last move: " + mLastMove.toString());
+    ss.append(board_right + " 11   Last move: " + this.getMove().toString());
 
     if ((pPlayer == Constants.CELL_RED && this.isRedWin()) ||
       (pPlayer == Constants.CELL_WHITE && this.isWhiteWin()) ) {
@@ -678,14 +1096,14 @@ public class GameState {
 
     // The board goes first
     for(int i = 0; i < NUMBER_OF_SQUARES; i++) {
-      ss.append(Constants.MESSAGE_SYMBOLS[mCell[i]]);
+      ss.append(Constants.MESSAGE_SYMBOLS[this.get(i)]);
     }
 
     // Then the information about moves
     assert(mNextPlayer == Constants.CELL_WHITE ||
     			mNextPlayer == Constants.CELL_RED);
 
-    ss.append(" " + mLastMove.toMessage() + " " +
+    ss.append(" " + this.getMove().toMessage() + " " +
     		Constants.MESSAGE_SYMBOLS[mNextPlayer] + " " +
     		(int) mMovesUntilDraw);
 
@@ -696,7 +1114,7 @@ public class GameState {
    * Gets the last move made (the move that led to the current state).
    */
   public final Move getMove() {
-    return this.mLastMove;
+    return new Move(this.mLastMove);
   }
 
   /**
@@ -717,34 +1135,34 @@ public class GameState {
    * Gets whether or not the current move marks the beginning of the game.
    */
   boolean isBOG() {
-    return this.mLastMove.isBOG();
+    return Move.type(this.mLastMove) == Move.MOVE_BOG;
   }
 
   /**
    * Gets whether or not the current move marks the end of the game.
    */
   boolean isEOG() {
-    return this.mLastMove.isEOG();
+    return Move.isEOG(this.mLastMove);
   }
 
   /**
    * Gets whether or not the last move ended in a win for red player.
    */
   boolean isRedWin() {
-    return this.mLastMove.isRedWin();
+    return Move.type(this.mLastMove) == Move.MOVE_RW;
   }
 
   /**
    * Gets whether or not the last move ended in a win for white player.
    */
   boolean isWhiteWin() {
-    return mLastMove.isWhiteWin();
+    return Move.type(this.mLastMove) == Move.MOVE_WW;
   }
 
   /**
    * Gets whether or not the last move ended in a draw.
    */
   boolean isDraw() {
-    return mLastMove.isDraw();
+    return Move.type(this.mLastMove) == Move.MOVE_DRAW;
   }
 }
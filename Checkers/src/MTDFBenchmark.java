@@ -0,0 +1,64 @@
+/**
+ * Compares MTD(f) with principal variation search with aspiration windows
+ * (the default driver), searching states to a fixed depth.
+ *
+ * Usage: java MTDFBenchmark <depth> [<state>...]
+ * where each state is in the format of GameState.toMessage() (an opening,
+ * a middlegame and an endgame state by default). Every search starts with
+ * an empty transposition table.
+ *
+ * @author fruggeri
+ */
+
+public class MTDFBenchmark {
+    private static final String[] SUITE = {
+            "rrrrrrrrrrrr........wwwwwwwwwwww -1 r 50",
+            "rrrrr.rr......r.....w.w.w..ww.Rw 1_29_22 r 50",
+            "..r...r.R......w......W..w...... 0_21_17 w 30",
+    };
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java MTDFBenchmark <depth> [<state>...]");
+            return;
+        }
+        int depth = Integer.parseInt(args[0]);
+        String[] states = args.length > 1 ? java.util.Arrays.copyOfRange(args, 1, args.length) : SUITE;
+
+        // warm up the JIT, so that the first search isn't penalized
+        GameState first = new GameState(states[0]);
+        run(first, depth-1, false);
+        run(first, depth-1, true);
+
+        long[] pvsTotal = new long[2], mtdfTotal = new long[2];
+        for (String message : states) {
+            GameState state = new GameState(message);
+            long[] pvs = run(state, depth, false);
+            long[] mtdf = run(state, depth, true);
+            for (int i=0; i<2; i++) {
+                pvsTotal[i] += pvs[i];
+                mtdfTotal[i] += mtdf[i];
+            }
+            System.out.println(message);
+            System.out.printf("  alpha-beta: %6d ms, %10d nodes%n", pvs[0], pvs[1]);
+            System.out.printf("  MTD(f):     %6d ms, %10d nodes%n", mtdf[0], mtdf[1]);
+        }
+        System.out.printf("total at depth %d: alpha-beta %d ms, %d nodes; MTD(f) %d ms, %d nodes%n",
+                depth, pvsTotal[0], pvsTotal[1], mtdfTotal[0], mtdfTotal[1]);
+    }
+
+    /**
+     * Searches a state up to a certain depth.
+     *
+     * @return the wall-clock time in ms and the nodes visited
+     */
+    private static long[] run(GameState state, int depth, boolean mtdf) {
+        Player player = new Player();
+        player.setMaxDepth(depth);
+        player.setMTDF(mtdf);
+        long start = System.nanoTime();
+        player.play(state, new Deadline(Long.MAX_VALUE));
+        return new long[] { (System.nanoTime() - start) / 1000000, player.getNodeVisited() };
+    }
+
+}
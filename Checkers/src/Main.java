@@ -11,6 +11,36 @@ import java.io.InputStreamReader;
  * 		Use the init flag if you want this client to initialise the game, that
  * 		is, send a starting board without moving for the other client to move
  * 		first.
+ * 		Use the hash=<MB> parameter for setting the size of the transposition
+ * 		table.
+ * 		Use the mmap=<file> parameter for keeping the transposition table in
+ * 		a memory-mapped file, outside of the heap and shared with the other
+ * 		players mapping the same file, and mmapsize=<GB> for its size (if
+ * 		the file doesn't exist yet, 1 GB by default).
+ * 		Use the threads=<N> parameter for searching with N threads.
+ * 		Use the ybwc=<N> parameter for splitting the search among N threads
+ * 		with YBWC (see also YBWCBenchmark). Like threads=, the workers share
+ * 		the transposition table and the search is not deterministic.
+ * 		Use the mtdf flag for searching with MTD(f) instead of principal
+ * 		variation search with aspiration windows (see also MTDFBenchmark).
+ * 		Use the lmr=<M>,<D>,<R> parameter for reducing by R plies the quiet
+ * 		moves after the first M ones, when the depth left is at least D
+ * 		(3,3,1 by default, R=0 for no reductions).
+ * 		Use the probcut flag for pruning with ProbCut, and the
+ * 		probcut=<a>,<b>,<sigma> parameter for its regression parameters as
+ * 		printed by ProbCutCalibration (implies the flag).
+ * 		Use the etc=<D> parameter for looking up the children of the nodes
+ * 		with at least D plies left in the transposition table before
+ * 		searching them (3 by default, 0 for never).
+ * 		Use the iid=<D> parameter for searching at a reduced depth the PV
+ * 		nodes with at least D plies left and no move in the transposition
+ * 		table, for finding a first move (5 by default, 0 for never).
+ * 		Use the egtb=<directory> parameter for looking up the endgames in the
+ * 		tables generated there by TablebaseGenerator.
+ * 		Use the egtbcache=<MB> parameter for setting the size of the cache
+ * 		of the compressed tables (16 MB by default).
+ * 		Use the book=<file> parameter for playing the openings from the book
+ * 		built there by OpeningBookBuilder.
  */
 public class Main {
 
@@ -19,6 +49,20 @@ public class Main {
     boolean init = false;
     boolean verbose = false;
     boolean fast = false;
+    boolean mtdf = false;
+    boolean probcut = false;
+    double[] probcutParameters = null;
+    int hashSize = 0;
+    String mmapFile = null;
+    String tablebaseDirectory = null;
+    int tablebaseCache = 16;
+    String bookFile = null;
+    int mmapSize = 1;
+    int threads = 1;
+    int ybwcThreads = 0;
+    int[] lmr = { 3, 3, 1 };
+    int etcDepth = 3;
+    int iidDepth = 5;
 
     for (int i = 0; i < args.length; ++i) {
       String param = args[i];
@@ -29,6 +73,42 @@ public class Main {
         verbose = true;
       } else if (param.equals("fast") || param.equals("f")) {
         fast = true;
+      } else if (param.equals("mtdf")) {
+        mtdf = true;
+      } else if (param.equals("probcut")) {
+        probcut = true;
+      } else if (param.startsWith("probcut=")) {
+        String[] values = param.substring("probcut=".length()).split(",");
+        probcutParameters = new double[3];
+        for (int j = 0; j < probcutParameters.length; ++j) {
+          probcutParameters[j] = Double.parseDouble(values[j]);
+        }
+        probcut = true;
+      } else if (param.startsWith("hash=")) {
+        hashSize = Integer.parseInt(param.substring("hash=".length()));
+      } else if (param.startsWith("mmap=")) {
+        mmapFile = param.substring("mmap=".length());
+      } else if (param.startsWith("book=")) {
+        bookFile = param.substring("book=".length());
+      } else if (param.startsWith("egtbcache=")) {
+        tablebaseCache = Integer.parseInt(param.substring("egtbcache=".length()));
+      } else if (param.startsWith("egtb=")) {
+        tablebaseDirectory = param.substring("egtb=".length());
+      } else if (param.startsWith("mmapsize=")) {
+        mmapSize = Integer.parseInt(param.substring("mmapsize=".length()));
+      } else if (param.startsWith("threads=")) {
+        threads = Integer.parseInt(param.substring("threads=".length()));
+      } else if (param.startsWith("ybwc=")) {
+        ybwcThreads = Integer.parseInt(param.substring("ybwc=".length()));
+      } else if (param.startsWith("etc=")) {
+        etcDepth = Integer.parseInt(param.substring("etc=".length()));
+      } else if (param.startsWith("iid=")) {
+        iidDepth = Integer.parseInt(param.substring("iid=".length()));
+      } else if (param.startsWith("lmr=")) {
+        String[] values = param.substring("lmr=".length()).split(",");
+        for (int j = 0; j < values.length && j < lmr.length; ++j) {
+          lmr[j] = Integer.parseInt(values[j]);
+        }
       } else {
         System.err.println("Unknown parameter: '" + args[i] + "'");
         return;
@@ -46,6 +126,27 @@ public class Main {
     }
 
     Player player = new Player();
+    player.setThreads(threads);
+    player.setParallelSearch(ybwcThreads);
+    player.setMTDF(mtdf);
+    player.setLateMoveReductions(lmr[0], lmr[1], lmr[2]);
+    player.setETCDepth(etcDepth);
+    player.setIIDDepth(iidDepth);
+    player.setProbCut(probcut);
+    if (tablebaseDirectory != null) {
+      player.setTablebase(new EndgameTablebase(tablebaseDirectory, tablebaseCache));
+    }
+    if (bookFile != null) {
+      player.setOpeningBook(new OpeningBook(bookFile));
+    }
+    if (probcutParameters != null) {
+      player.setProbCutParameters(probcutParameters[0], probcutParameters[1], probcutParameters[2]);
+    }
+    if (mmapFile != null) {
+      player.setTranspositionTable(new MappedTranspositionTable(mmapFile, mmapSize));
+    } else if (hashSize > 0) {
+      player.setTranspositionTable(new TranspositionTable(hashSize));
+    }
 
     String input_message;
     BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Transposition table kept off the Java heap, in a memory-mapped file.
+ *
+ * The garbage collector never scans it, it can be larger than the heap, and
+ * several engine processes mapping the same file share the same table (the
+ * entries are written without locks, see TranspositionTable). The file is
+ * not deleted on exit, so a later game can also reuse it.
+ *
+ * A single mapping is limited to 2 GB, so the file is mapped in segments.
+ *
+ * @author fruggeri
+ */
+
+public class MappedTranspositionTable extends TranspositionTable {
+    private static final int SEGMENT_SHIFT = 27;    // 2^27 longs (1 GB) per segment
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final LongBuffer[] segments;
+
+    /**
+     * Maps the table.
+     *
+     * @param path
+     *            file holding the table, created if it doesn't exist
+     * @param sizeGB
+     *            size of the table in GB if the file doesn't exist yet,
+     *            otherwise the size of the file is used, so that all the
+     *            processes sharing it agree on where entries are
+     * @throws IOException
+     *             if the file can't be mapped
+     */
+    public MappedTranspositionTable(String path, int sizeGB) throws IOException {
+        this(path, getBuckets(getSize(path, sizeGB)));
+    }
+
+    private MappedTranspositionTable(String path, long buckets) throws IOException {
+        super(buckets);
+        long longs = buckets * TranspositionTable.BUCKET_SIZE;
+        segments = new LongBuffer[(int) ((longs + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+
+        // the mappings stay valid after the file is closed
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw");
+                FileChannel channel = file.getChannel()) {
+            for (int i=0; i<segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                long size = Math.min(longs - position, 1L << SEGMENT_SHIFT);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position*8, size*8)
+                        .order(ByteOrder.nativeOrder())
+                        .asLongBuffer();
+            }
+        }
+    }
+
+    private static long getSize(String path, int sizeGB) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            if (file.length() == 0)
+                file.setLength((long) sizeGB << 30);
+            return file.length();
+        }
+    }
+
+    @Override
+    protected long load(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    @Override
+    protected void save(long index, long value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+    }
+
+}
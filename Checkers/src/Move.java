@@ -1,5 +1,4 @@
 import java.util.StringTokenizer;
-import java.util.Vector;
 
 /**
  * Represents a move.
@@ -11,6 +10,16 @@ import java.util.Vector;
  *
  * You can probably ignore the rest of the class.
  * Note that "jump" refers to capturing a piece by jumping over it.
+ *
+ * A move is packed into a long, so that the search can handle moves without
+ * allocating any object, through the static methods of this class:
+ *
+ *   bits  0-4   the type of the move, plus 5 (so that MOVE_NULL is 0)
+ *   bits  5-9   the starting square
+ *   bits 10-31  the direction (see GameState.shift()) of each of the up to
+ *               11 steps, 2 bits each; a step is one square for normal moves
+ *               and two squares for jumps
+ *   bits 32-63  the bitboard of the captured pieces
  */
 public class Move {
 	/**
@@ -24,11 +33,169 @@ public class Move {
   public static final int MOVE_WW   = -3; // White wins => end of game
   public static final int MOVE_DRAW   = -4; // Draw => end of game
   public static final int MOVE_NULL   = -5; // A null move
+
+  public static final int MAX_JUMPS = 11; // Maximum number of jumps in a move
 	
   static final String cDelimiter = "_";
 
-  private int mType;
-  private Vector<Integer> mData = new Vector<Integer>();
+  /* Layout of the packed representation */
+  private static final int TYPE_OFFSET = 5;
+  private static final int TYPE_MASK = 0x1F;
+  private static final int FROM_SHIFT = 5;
+  private static final int STEPS_SHIFT = 10;
+  private static final int CAPTURED_SHIFT = 32;
+
+  private long mMove;
+
+  /**
+   * Packs a move without squares (e.g. MOVE_BOG or MOVE_DRAW).
+   */
+  public static long pack(int pType) {
+    return pType + TYPE_OFFSET;
+  }
+
+  /**
+   * Packs a normal move.
+   *
+   * @param pFrom the starting square
+   * @param pDirection the direction of the step
+   */
+  public static long pack(int pFrom, int pDirection) {
+    return pack(MOVE_NORMAL) | (pFrom << FROM_SHIFT) |
+        ((long) pDirection << STEPS_SHIFT);
+  }
+
+  /**
+   * Packs the starting square of a jump, which still has to be extended with
+   * appendJump().
+   *
+   * @param pFrom the starting square
+   */
+  public static long packJump(int pFrom) {
+    return pack(MOVE_NORMAL) | (pFrom << FROM_SHIFT);
+  }
+
+  /**
+   * Appends a jump to a packed move (see packJump()).
+   *
+   * @param pMove the packed move to extend
+   * @param pDirection the direction of the jump
+   * @param pCaptured the bitboard of the piece jumped over
+   */
+  public static long appendJump(long pMove, int pDirection, int pCaptured) {
+    int lJumps = type(pMove);
+    return (pMove + 1) |
+        ((long) pDirection << (STEPS_SHIFT + 2*lJumps)) |
+        ((pCaptured & 0xFFFFFFFFL) << CAPTURED_SHIFT);
+  }
+
+  /**
+   * Gets the type of a packed move.
+   */
+  public static int type(long pMove) {
+    return (int) (pMove & TYPE_MASK) - TYPE_OFFSET;
+  }
+
+  /**
+   * Checks if a packed move is a jump.
+   */
+  public static boolean isJump(long pMove) {
+    return type(pMove) > 0;
+  }
+
+  /**
+   * Checks if a packed move is a normal move.
+   */
+  public static boolean isNormal(long pMove) {
+    return type(pMove) == MOVE_NORMAL;
+  }
+
+  /**
+   * Checks if a packed move marks end of game.
+   */
+  public static boolean isEOG(long pMove) {
+    return type(pMove) < MOVE_BOG;
+  }
+
+  /**
+   * Gets the starting square of a packed move.
+   */
+  public static int from(long pMove) {
+    return (int) (pMove >>> FROM_SHIFT) & 0x1F;
+  }
+
+  /**
+   * Gets the direction of the pN-th step of a packed move.
+   */
+  public static int direction(long pMove, int pN) {
+    return (int) (pMove >>> (STEPS_SHIFT + 2*pN)) & 3;
+  }
+
+  /**
+   * Gets the bitboard of the pieces captured by a packed move.
+   */
+  public static int captured(long pMove) {
+    return (int) (pMove >>> CAPTURED_SHIFT);
+  }
+
+  /**
+   * Gets (for normal moves and jumps) the length of the move sequence of a
+   * packed move.
+   */
+  public static int length(long pMove) {
+    int lType = type(pMove);
+    if (lType == MOVE_NORMAL) {
+      return 2;
+    }
+    return lType > 0 ? lType + 1 : 0;
+  }
+
+  /**
+   * Gets the pN-th square in the move sequence of a packed move.
+   */
+  public static int at(long pMove, int pN) {
+    boolean lJump = isJump(pMove);
+    int lCell = from(pMove);
+    for (int i = 0; i < pN; i++) {
+      lCell = step(lCell, direction(pMove, i), lJump);
+    }
+    return lCell;
+  }
+
+  /**
+   * Gets the last square in the move sequence of a packed move.
+   */
+  public static int to(long pMove) {
+    return at(pMove, length(pMove) - 1);
+  }
+
+  /**
+   * Gets the square reached from a square with a step (a jump if pJump is
+   * true) in a certain direction, or -1 if it falls outside of the board.
+   */
+  private static int step(int pCell, int pDirection, boolean pJump) {
+    return (pJump ? GameState.JUMPS : GameState.NEIGHBORS)[4 * pCell + pDirection];
+  }
+
+  /**
+   * Finds the direction of a step (a jump if pJump is true) between two
+   * squares, or -1 if there is none.
+   */
+  private static int findDirection(int pFrom, int pTo, boolean pJump) {
+    for (int d = GameState.DOWN_LEFT; d <= GameState.UP_RIGHT; d++) {
+      if (step(pFrom, d, pJump) == pTo) {
+        return d;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Constructs a move from its packed representation.
+   */
+  public Move(long pMove) {
+    this.mMove = pMove;
+  }
 
   /**
    * Constructs a specific type of move.
@@ -38,7 +205,7 @@ public class Move {
    * @return
    */
   public Move(int moveType) {
-    this.mType = moveType;
+    this.mMove = pack(moveType);
   }
 
   /**
@@ -51,29 +218,14 @@ public class Move {
   /**
    * Constructs a normal move (not a jump).
    *
+   * If the squares are not adjacent, a MOVE_NULL is constructed.
+   *
    * @param p1 the starting square
    * @param p2 the ending square
    */
   public Move(int p1, int p2) {
-    this(MOVE_NORMAL);
-
-    assert (this.mData.size() == 0);
-
-    this.mData.add(p1);
-    this.mData.add(p2);
-  }
-
-  /**
-   * Constructs a jump move, which may consist of a series of jumps.
-   *
-   * @param pData a series of squares which form the sequence of jumps
-   */
-  public Move(Vector<Integer> pData, int len) {
-    this.mType = len - 1;
-    this.mData.setSize(0);
-    for (int i = 0; i < len; i++) {
-      this.mData.add(pData.get(i));
-    }
+    int lDirection = findDirection(p1, p2, false);
+    this.mMove = lDirection < 0 ? pack(MOVE_NULL) : pack(p1, lDirection);
   }
 
   /**
@@ -86,23 +238,24 @@ public class Move {
     StringTokenizer st = new StringTokenizer(pString, Move.cDelimiter);
     String str = st.nextToken();
 
-    this.mType = Integer.parseInt(str);
+    int lType = Integer.parseInt(str);
 
     int lLen = 0;
 
-    if (mType == MOVE_NORMAL) {
+    if (lType == MOVE_NORMAL) {
       lLen = 2;
-    } else if (mType > 0) {
-      lLen = mType + 1;
+    } else if (lType > 0) {
+      lLen = lType + 1;
     }
 
-    if (lLen > 12 || mType < MOVE_NULL) {
-      mType = MOVE_NULL;
+    if (lLen > 12 || lType < MOVE_NULL) {
+      this.mMove = pack(MOVE_NULL);
       return;
     }
 
-    this.mData.setSize(lLen);
+    this.mMove = pack(lType);
 
+    int lPrev = -1;
     for (int i = 0; i < lLen; i++) {
       int lCell;
 
@@ -110,15 +263,34 @@ public class Move {
       lCell = Integer.parseInt(str);
 
       if (lCell < 0 || lCell > 31) {
-        this.mType = MOVE_NULL;
+        this.mMove = pack(MOVE_NULL);
         break;
       }
 
-      this.mData.set(i, lCell);
+      if (i == 0) {
+        this.mMove = packJump(lCell);
+        lPrev = lCell;
+        continue;
+      }
+
+      // Only steps along the diagonals can be represented
+      int lDirection = findDirection(lPrev, lCell, lType != MOVE_NORMAL);
+      if (lDirection < 0) {
+        this.mMove = pack(MOVE_NULL);
+        break;
+      }
+
+      if (lType == MOVE_NORMAL) {
+        this.mMove = pack(lPrev, lDirection);
+      } else {
+        this.mMove = appendJump(this.mMove, lDirection,
+            1 << step(lPrev, lDirection, false));
+      }
+      lPrev = lCell;
     }
 
     if (st.hasMoreTokens()) {
-      this.mType = MOVE_NULL;
+      this.mMove = pack(MOVE_NULL);
     }
   }
 
@@ -126,8 +298,7 @@ public class Move {
    * Creates a deep copy of a Move.
    */
   public Move(Move m) {
-    this.mType = m.mType;
-    this.mData = new Vector<Integer>(m.mData);
+    this.mMove = m.mMove;
   }
 
   /**
@@ -137,95 +308,100 @@ public class Move {
    * vice versa.
    */
   public Move reversed() {
-    Move result = new Move(this.mType);
-
     if (this.isRedWin()) {
-      result.mType = MOVE_WW;
+      return new Move(MOVE_WW);
     } else if (this.isWhiteWin()) {
-      result.mType = MOVE_RW;
+      return new Move(MOVE_RW);
+    } else if (this.length() == 0) {
+      return new Move(this.mMove);
     }
 
-    for (int i = 0; i < this.mData.size(); i++) {
-      result.mData.add(31 - this.mData.elementAt(i));
+    // Rotating the board maps square i to 31-i and direction d to 3-d
+    long lMove = pack(this.getType()) | ((31 - this.at(0)) << FROM_SHIFT);
+    for (int i = 0; i < this.length() - 1; i++) {
+      lMove |= (long) (GameState.UP_RIGHT - direction(this.mMove, i)) <<
+          (STEPS_SHIFT + 2*i);
     }
-    return result;
+    lMove |= (Integer.reverse(captured(this.mMove)) & 0xFFFFFFFFL) <<
+        CAPTURED_SHIFT;
+    return new Move(lMove);
   }
 
   /**
    * Checks if the movement is null or invalid.
    */
   public boolean isNull() {
-    return (this.mType == MOVE_NULL);
+    return type(this.mMove) == MOVE_NULL;
   }
 
   /**
    * Checks if the movement marks beginning of game.
    */
   public boolean isBOG() {
-    return (this.mType == MOVE_BOG);
+    return type(this.mMove) == MOVE_BOG;
   }
 
   /**
    * Checks if the movement marks end of game.
    */
   public boolean isEOG() {
-    return (this.mType < MOVE_BOG);
+    return isEOG(this.mMove);
   }
 
   /**
    * Checks if the game ended in red win.
    */
   public boolean isRedWin() {
-    return (this.mType == MOVE_RW);
+    return type(this.mMove) == MOVE_RW;
   }
 
   /**
    * Checks if the game ended in white win.
    */
   public boolean isWhiteWin() {
-    return (this.mType == MOVE_WW);
+    return type(this.mMove) == MOVE_WW;
   }
 
   /**
    * Checks if the game ended in draw.
    */
   public boolean isDraw() {
-    return (this.mType == MOVE_DRAW);
+    return type(this.mMove) == MOVE_DRAW;
   }
 
   /**
    * Checks if the movement is a jump.
    */
   public boolean isJump() {
-    return (this.mType > 0);
+    return isJump(this.mMove);
   }
 
   /**
    * Checks if the movement is a normal move.
    */
   public boolean isNormal() {
-    return (this.mType == MOVE_NORMAL);
+    return isNormal(this.mMove);
   }
 
   /**
    * Gets the type of the move.
    */
   public int getType() {
-    return this.mType;
+    return type(this.mMove);
   }
 
   /**
    * Gets (for normal moves and jumps) the length of the move sequence.
    */
   public int length() {
-    return this.mData.size();
+    return length(this.mMove);
   }
 
   /**
    * Gets the pN-th square in the move sequence.
    */
   public int at(int pN) {
-    return this.mData.elementAt(pN);
+    return at(this.mMove, pN);
   }
 
   /**
@@ -233,27 +409,34 @@ public class Move {
    */
   public String toMessage() {
     String lStream = new String();
-    lStream = lStream + mType;
+    lStream = lStream + this.getType();
 
-    for (int i = 0; i < this.mData.size(); i++) {
-      lStream = lStream + cDelimiter + this.mData.elementAt(i);
+    for (int i = 0; i < this.length(); i++) {
+      lStream = lStream + cDelimiter + this.at(i);
     }
 
     return lStream;
   }
 
+  /**
+   * Gets the packed representation of the move.
+   */
+  public long pack() {
+    return this.mMove;
+  }
+
   @Override
   public String toString() {
-    if (this.mType == MOVE_WW) {
+    if (this.isWhiteWin()) {
       return "WW";
     }
-    if (this.mType == MOVE_RW) {
+    if (this.isRedWin()) {
       return "RW";
     }
-    if (this.mType == MOVE_DRAW) {
+    if (this.isDraw()) {
       return "DRAW";
     }
-    if (this.mType == MOVE_BOG) {
+    if (this.isBOG()) {
       return "BOG";
     }
     if (this.isNull()) {
@@ -263,13 +446,13 @@ public class Move {
     String lStream = new String();
     String delimiter = isNormal() ? "-" : "x";
 
-    assert (this.mData.size() > 0);
+    assert (this.length() > 0);
 
     // Concatenate all the cell numbers
-    lStream = lStream + this.mData.elementAt(0);
+    lStream = lStream + this.at(0);
 
-    for (int i = 1; i < this.mData.size(); i++) {
-      lStream = lStream + delimiter + this.mData.elementAt(i);
+    for (int i = 1; i < this.length(); i++) {
+      lStream = lStream + delimiter + this.at(i);
     }
 
     return lStream;
@@ -279,20 +462,6 @@ public class Move {
    * Checks if the two objects represent the same move.
    */
   public boolean equals(final Move pRH) {
-    if (this.mType != pRH.mType) {
-      return false;
-    }
-
-    if (this.mData.size() != pRH.mData.size()) {
-      return false;
-    }
-
-    for (int i = 0; i < this.mData.size(); i++) {
-      if (this.mData.elementAt(i) != pRH.mData.elementAt(i)) {
-        return false;
-      }
-    }
-
-    return true;
+    return this.mMove == pRH.mMove;
   }
 }
@@ -0,0 +1,216 @@
+import java.util.Random;
+
+/**
+ * Gives the moves of a state one at a time, best first, generating them in
+ * stages, so that the later stages are not even generated when an earlier
+ * move causes a cutoff:
+ * 1. the hash move, if it's legal in the state, without generating anything.
+ * 2. the jumps, by decreasing material captured.
+ * 3. the killer moves, if they are legal in the state.
+ * 4. the rest of the normal moves, by decreasing history (promotions first).
+ * Normal moves are only legal when there are no jumps, so the last two
+ * stages are skipped when the second one finds any jump. The pseudo-moves
+ * ending the game (see GameState.findPossibleMoves()) are given alone.
+ *
+ * A picker is meant to be reused for all the states searched at the same
+ * ply, so that picking doesn't allocate anything.
+ *
+ * @author fruggeri
+ */
+
+public class MovePicker {
+    // priorities of the moves of a stage (also used by Player.moveOrdering())
+    static final int PRIORITY_JUMP = 1 << 29;		// + material captured
+    static final int PRIORITY_KILLER = 1 << 28;		// + 1 for the most recent killer
+    static final int PRIORITY_PROMOTION = 1 << 27;	// + history, like other normal moves
+
+    private static final int STAGE_HASH = 0;
+    private static final int STAGE_GENERATE_JUMPS = 1;
+    private static final int STAGE_JUMPS = 2;
+    private static final int STAGE_KILLERS = 3;
+    private static final int STAGE_GENERATE_NORMAL = 4;
+    private static final int STAGE_NORMAL = 5;
+    private static final int STAGE_LOSS = 6;
+    private static final int STAGE_END = 7;
+
+    private final long[] moves = new long[GameState.MAX_MOVES];
+    private final int[] priorities = new int[GameState.MAX_MOVES];
+    private final int[] history;
+    private final Random random;
+
+    private GameState state;
+    private int stage;
+    private long hashMove;
+    private long[] killers = new long[2];
+    private int nKillers;	// killers given so far
+    private int nMoves;		// moves generated by the current stage
+    private int next;		// next of them to pick
+    private int picked;		// moves given so far
+
+    /**
+     * @param history
+     *            normal moves by (from, to), weighted by the cutoffs they
+     *            caused (see Player)
+     * @param random
+     *            used for ordering randomly the moves with the same priority
+     */
+    MovePicker(int[] history, Random random) {
+        this.history = history;
+        this.random = random;
+    }
+
+    /**
+     * Starts picking the moves of a state.
+     *
+     * @param hashMove
+     *            the best move found by a previous search, 0 if unknown
+     * @param killer1
+     *            the most recent killer move, 0 if unknown
+     * @param killer2
+     *            the other killer move, 0 if unknown
+     */
+    void init(GameState state, long hashMove, long killer1, long killer2) {
+        this.state = state;
+        this.hashMove = hashMove;
+        killers[0] = killer1;
+        killers[1] = killer2;
+        stage = STAGE_HASH;
+        nKillers = nMoves = next = picked = 0;
+    }
+
+    /**
+     * Gets the next move.
+     *
+     * @return the packed move, 0 (MOVE_NULL) when there are no more moves
+     */
+    long next() {
+        long move;
+        while (true) {
+            switch (stage) {
+            case STAGE_HASH:
+                if (state.isEOG()) {
+                    stage = STAGE_END;
+                    break;
+                }
+                if (state.getMovesUntilDraw() <= 0) {
+                    stage = STAGE_END;
+                    return Move.pack(Move.MOVE_DRAW);
+                }
+                stage = STAGE_GENERATE_JUMPS;
+                if (hashMove != 0 && state.isLegal(hashMove))
+                    return give(hashMove);
+                hashMove = 0;
+                break;
+
+            case STAGE_GENERATE_JUMPS:
+                generate(state.findJumps(moves));
+                stage = nMoves > 0 ? STAGE_JUMPS : STAGE_KILLERS;
+                break;
+
+            case STAGE_JUMPS:
+                if ((move = pickBest()) != 0)
+                    return give(move);
+                stage = STAGE_END;	// no normal moves after jumps
+                break;
+
+            case STAGE_KILLERS:
+                // there are no jumps, a legal killer is a normal move
+                while (nKillers < killers.length) {
+                    move = killers[nKillers];
+                    if (move != 0 && move != hashMove && state.isLegal(move)) {
+                        nKillers++;
+                        return give(move);
+                    }
+                    killers[nKillers] = 0;	// not given, so it's not skipped later
+                    nKillers++;
+                }
+                stage = STAGE_GENERATE_NORMAL;
+                break;
+
+            case STAGE_GENERATE_NORMAL:
+                generate(state.findNormalMoves(moves));
+                stage = STAGE_NORMAL;
+                break;
+
+            case STAGE_NORMAL:
+                if ((move = pickBest()) != 0)
+                    return give(move);
+                stage = STAGE_LOSS;
+                break;
+
+            case STAGE_LOSS:
+                stage = STAGE_END;
+                if (picked == 0)
+                    return state.getLossMove();	// no moves at all
+                break;
+
+            default:	// STAGE_END
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gets the priority of a jump or normal move among the moves of its
+     * stage, the higher the better.
+     */
+    static int priority(GameState state, long move, int[] history) {
+        if (Move.isJump(move)) {
+            int captured = Move.captured(move);
+            int kings = state.getKings();
+            return PRIORITY_JUMP + Player.WEIGHT_PIECE*Integer.bitCount(captured & ~kings) +
+                    Player.WEIGHT_KING*Integer.bitCount(captured & kings);
+        }
+        if (Move.isNormal(move)) {
+            int priority = history[Move.from(move)*32 + Move.to(move)];
+            if (state.isPromotion(move))
+                priority += PRIORITY_PROMOTION;
+            return priority;
+        }
+        return 0;
+    }
+
+    private long give(long move) {
+        picked++;
+        return move;
+    }
+
+    private void generate(int n) {
+        nMoves = n;
+        next = 0;
+
+        // random order among moves with the same priority
+        for (int i=nMoves-1; i>0; i--) {
+            int j = random.nextInt(i+1);
+            long tmp = moves[i];
+            moves[i] = moves[j];
+            moves[j] = tmp;
+        }
+
+        for (int i=0; i<nMoves; i++)
+            priorities[i] = priority(state, moves[i], history);
+    }
+
+    /**
+     * Selects the best move not picked yet (moves already given by the
+     * previous stages are skipped).
+     */
+    private long pickBest() {
+        while (next < nMoves) {
+            int best = next;
+            for (int i=next+1; i<nMoves; i++)
+                if (priorities[i] > priorities[best])
+                    best = i;
+
+            long move = moves[best];
+            moves[best] = moves[next];
+            priorities[best] = priorities[next];
+            next++;
+
+            if (move != hashMove && move != killers[0] && move != killers[1])
+                return move;
+        }
+        return 0;
+    }
+
+}
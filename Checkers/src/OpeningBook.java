@@ -0,0 +1,92 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Opening book: the best moves of the states of the first plies of the game,
+ * found offline by deep searches (see OpeningBookBuilder).
+ *
+ * The file is a sequence of entries of two longs, the Zobrist hash of a state
+ * (see GameState.hash()) and the packed move to play, sorted by hash. It is
+ * memory-mapped read-only and looked up by binary search, so a lookup costs
+ * a few page reads and no search.
+ *
+ * Only the hash of the state is stored, so a different state with the same
+ * hash may get its move: the move must be checked against the legal ones.
+ *
+ * @author fruggeri
+ */
+
+public class OpeningBook {
+    private static final int ENTRY_LONGS = 2;  // hash, move
+
+    private final LongBuffer entries;
+    private final int size;
+
+    /**
+     * Maps a book.
+     *
+     * @throws IOException
+     *             if the file can't be read or is not a book
+     */
+    public OpeningBook(String path) throws IOException {
+        // the mapping stays valid after the file is closed
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+                FileChannel channel = file.getChannel()) {
+            if (channel.size() % (8 * ENTRY_LONGS) != 0)
+                throw new IOException("Not an opening book: " + path);
+            entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asLongBuffer();
+            size = (int) (channel.size() / (8 * ENTRY_LONGS));
+        }
+    }
+
+    /**
+     * Gets the number of states in the book.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Looks up the move of a state.
+     *
+     * @return the packed move, 0 (a null move) if the state is not in the
+     *         book
+     */
+    public long probe(GameState state) {
+        long hash = state.hash();
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long key = entries.get(middle * ENTRY_LONGS);
+            if (key < hash)
+                low = middle + 1;
+            else if (key > hash)
+                high = middle - 1;
+            else
+                return entries.get(middle * ENTRY_LONGS + 1);
+        }
+        return Move.pack(Move.MOVE_NULL);
+    }
+
+    /**
+     * Writes a book.
+     *
+     * @param moves
+     *            the packed moves by hash of the states
+     */
+    static void write(SortedMap<Long, Long> moves, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        for (Map.Entry<Long, Long> entry : moves.entrySet()) {
+            data.writeLong(entry.getKey());
+            data.writeLong(entry.getValue());
+        }
+        data.flush();
+    }
+
+}
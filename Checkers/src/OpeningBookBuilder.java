@@ -0,0 +1,154 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the opening book (see OpeningBook) by searching the states of the
+ * first plies of the game.
+ *
+ * Usage: java OpeningBookBuilder <plies> <file> [depth=<D>] [threads=<N>]
+ * where plies is the number of plies of the game covered by the book, and
+ * depth the depth of the searches (14 by default). On a single core, the
+ * book of 8 plies takes about 800 searches and 5 minutes.
+ *
+ * The opening tree is expanded for both players: when the player following
+ * the book moves, the state is searched and only its best move is expanded;
+ * when the opponent moves, all the moves are expanded, since any of them
+ * may be played. The root is both, since either player may follow the book.
+ * The tree is expanded a ply at a time, and the states of a ply (merged by
+ * hash, since different move orders often lead to the same state) are
+ * searched in parallel, one per thread, each thread with its own
+ * transposition table.
+ *
+ * @author fruggeri
+ */
+
+public class OpeningBookBuilder {
+    private static final int DEFAULT_DEPTH = 14;
+    private static final int HASH_SIZE = 64;    // MB of transposition table of each thread
+
+    // what is expanded in a state (both for the root)
+    private static final int BOOK = 1;      // the best move, the player moving follows the book
+    private static final int ANY = 2;       // all the moves, the opponent moves
+
+    private static class Node {
+        final GameState state;
+        int expand;     // BOOK and/or ANY
+
+        Node(GameState state, int expand) {
+            this.state = state;
+            this.expand = expand;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        int plies = -1;
+        String path = null;
+        int depth = DEFAULT_DEPTH;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (String param : args) {
+            if (param.startsWith("depth=")) {
+                depth = Integer.parseInt(param.substring("depth=".length()));
+            } else if (param.startsWith("threads=")) {
+                threads = Integer.parseInt(param.substring("threads=".length()));
+            } else if (plies < 0) {
+                plies = Integer.parseInt(param);
+            } else {
+                path = param;
+            }
+        }
+        if (plies < 1 || path == null) {
+            System.err.println("Usage: java OpeningBookBuilder <plies> <file> [depth=<D>] [threads=<N>]");
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        SortedMap<Long, Long> book;
+        try {
+            book = build(plies, depth, executor);
+        } finally {
+            executor.shutdown();
+        }
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(path))) {
+            OpeningBook.write(book, file);
+        }
+        System.out.printf("%s: %d states%n", path, book.size());
+    }
+
+    /**
+     * Expands the opening tree and searches the states where the player
+     * moving follows the book.
+     *
+     * @return the best moves by hash of the states searched
+     */
+    private static SortedMap<Long, Long> build(int plies, final int depth, ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        final ThreadLocal<Player> players = ThreadLocal.withInitial(() -> {
+            Player player = new Player();
+            player.setTranspositionTable(new TranspositionTable(HASH_SIZE));
+            player.setMaxDepth(depth);
+            return player;
+        });
+        SortedMap<Long, Long> book = new TreeMap<>();
+        long[] moves = new long[GameState.MAX_MOVES];
+        Map<Long, Node> level = new LinkedHashMap<>();
+        GameState root = new GameState();
+        level.put(root.hash(), new Node(root, BOOK | ANY));
+
+        for (int ply=0; ply<plies; ply++) {
+            long start = System.nanoTime();
+
+            // search (states with a single move are never looked up)
+            Map<Long, Future<Long>> searches = new LinkedHashMap<>();
+            for (Node node : level.values()) {
+                final GameState state = node.state;
+                if ((node.expand & BOOK) != 0 && state.findPossibleMoves(moves) > 1) {
+                    searches.put(state.hash(), executor.submit(() ->
+                            players.get().play(state, new Deadline(Long.MAX_VALUE)).getMove().pack()));
+                }
+            }
+            for (Map.Entry<Long, Future<Long>> search : searches.entrySet())
+                book.put(search.getKey(), search.getValue().get());
+
+            // expand
+            Map<Long, Node> next = new LinkedHashMap<>();
+            for (Node node : level.values()) {
+                int nMoves = node.state.findPossibleMoves(moves);
+                if (node.state.isEOG() || nMoves == 0)
+                    continue;
+                if ((node.expand & BOOK) != 0) {
+                    Long best = book.get(node.state.hash());
+                    add(next, new GameState(node.state, new Move(best != null ? best : moves[0])), ANY);
+                }
+                if ((node.expand & ANY) != 0) {
+                    for (int i=0; i<nMoves; i++)
+                        add(next, new GameState(node.state, new Move(moves[i])), BOOK);
+                }
+            }
+
+            System.out.printf("ply %d: %d states, %d searched, %d ms%n",
+                    ply, level.size(), searches.size(), (System.nanoTime() - start) / 1000000);
+            level = next;
+        }
+        return book;
+    }
+
+    private static void add(Map<Long, Node> level, GameState state, int expand) {
+        Node node = level.get(state.hash());
+        if (node == null)
+            level.put(state.hash(), new Node(state, expand));
+        else
+            node.expand |= expand;
+    }
+
+}
@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the leaves of the game tree up to a certain depth (perft), for
+ * validating and benchmarking the move generator independently of the
+ * search.
+ *
+ * Usage: java Perft <depth> [<state>] [divide] [nobulk] [threads=<N>]
+ * where the state is in the format of GameState.toMessage() (the initial
+ * state by default).
+ * 		Use the divide flag for printing the count of each move of the state.
+ * 		Use the nobulk flag for making also the moves of the last ply,
+ * 		instead of just counting them (slower, but it exercises makeMove()
+ * 		and unmakeMove() as well).
+ * 		Use the threads=<N> parameter for splitting the moves of the state
+ * 		among N threads.
+ *
+ * The moves counted are the ones returned by findPossibleMoves(), so the
+ * pseudo-moves ending the game (draw, red wins, white wins) count as moves,
+ * and the states after them have no moves. Until the draw rule kicks in,
+ * the counts from the initial state are the ones of checkers: 7, 49, 302,
+ * 1469, 7361, 36768, 179740, 845931, 3963680, 18391564 (depth 1 to 10).
+ *
+ * @author fruggeri
+ */
+
+public class Perft {
+    private final long[][] moveBuffers;    // moves generated at each ply
+    private final boolean bulk;
+
+    private Perft(int depth, boolean bulk) {
+        this.moveBuffers = new long[Math.max(depth, 1)][GameState.MAX_MOVES];
+        this.bulk = bulk;
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int depth = -1;
+        GameState state = new GameState();
+        boolean divide = false;
+        boolean bulk = true;
+        int threads = 1;
+
+        for (String param : args) {
+            if (param.equals("divide")) {
+                divide = true;
+            } else if (param.equals("nobulk")) {
+                bulk = false;
+            } else if (param.startsWith("threads=")) {
+                threads = Integer.parseInt(param.substring("threads=".length()));
+            } else if (depth < 0) {
+                depth = Integer.parseInt(param);
+            } else {
+                state = new GameState(param);
+            }
+        }
+        if (depth < 0) {
+            System.err.println("Usage: java Perft <depth> [<state>] [divide] [nobulk] [threads=<N>]");
+            return;
+        }
+
+        long start = System.nanoTime();
+        long nodes = divide(state, depth, bulk, threads, divide);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Nodes: " + nodes);
+        System.out.printf("Time: %d ms (%.0f nodes/s)%n", elapsed / 1000000, nodes * 1e9 / Math.max(elapsed, 1));
+    }
+
+    /**
+     * Counts the leaves under each move of the state, splitting the moves
+     * among threads.
+     *
+     * @param print
+     *            true for printing the count of each move
+     * @return the total count
+     */
+    public static long divide(GameState state, int depth, boolean bulk, int threads, boolean print)
+            throws InterruptedException, ExecutionException {
+        if (depth == 0)
+            return 1;
+
+        long[] moves = new long[GameState.MAX_MOVES];
+        int nMoves = state.findPossibleMoves(moves);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> counts = new ArrayList<>();
+        try {
+            for (int i=0; i<nMoves; i++) {
+                final long move = moves[i];
+                counts.add(executor.submit(() -> {
+                    GameState child = new GameState(state);
+                    child.makeMove(move);
+                    return new Perft(depth, bulk).perft(child, depth-1, 0);
+                }));
+            }
+
+            long nodes = 0;
+            for (int i=0; i<nMoves; i++) {
+                long count = counts.get(i).get();
+                if (print)
+                    System.out.println(new Move(moves[i]) + ": " + count);
+                nodes += count;
+            }
+            return nodes;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private long perft(GameState state, int depth, int ply) {
+        if (depth == 0)
+            return 1;
+
+        long[] moves = moveBuffers[ply];
+        int nMoves = state.findPossibleMoves(moves);
+
+        // bulk counting: the moves of the last ply are not made
+        if (depth == 1 && bulk)
+            return nMoves;
+
+        long nodes = 0;
+        for (int i=0; i<nMoves; i++) {
+            long undo = state.makeMove(moves[i]);
+            nodes += perft(state, depth-1, ply+1);
+            state.unmakeMove(moves[i], undo);
+        }
+        return nodes;
+    }
+
+}
@@ -1,36 +1,116 @@
 import java.util.*;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Possible improvements:
- * - Repeated states using Zobrist hashing
- * - End-game lookup table
- * 
  * @author fruggeri
  */
 
 public class Player {
-	private static final int WEIGHT_KING = 5;
-	private static final int WEIGHT_PIECE = 1;
+	static final int WEIGHT_KING = 5;
+	static final int WEIGHT_PIECE = 1;
+	static final int WIN = 1 << 30;		// score of a win, minus the plies to reach it (-WIN plus the plies for a loss)
+	static final int KNOWN_WIN = WIN / 4;	// score of a win found in the tablebase, plus the material
+	private static final int TABLEBASE_MIN_MOVES = 20;	// plies before the draw for trusting a win in the tablebase
 	private static final long MARGIN_DEADLINE = (long) 1e8;	// 100 ms of margin
     private static final long TIME_TO_RETURN = (long) 1e5;  // 0.1 ms to return 1 level up in recursion
-    private static final int INITIAL_DEPTH = 9;				// don't start from 1, too much time wasted
-    private static final int NUMBER_OF_ROWS = 8;
-	private static final int NUMBER_OF_COLUMNS = 4;
+    private static final int INITIAL_DEPTH = 1;				// cheap, the transposition table is kept between iterations
+    private static final int DEFAULT_HASH_SIZE = 64;		// MB of transposition table
+    private static final int MIN_SPLIT_DEPTH = 3;			// YBWC: shallower nodes are searched serially
+    private static final int ASPIRATION_WINDOW = 1;			// half width of the first aspiration window (a piece)
+    private static final int MAX_HISTORY = 1 << 26;			// the history is halved when reached
+    private static final int IID_REDUCTION = 2;				// IID: plies of reduction of the search for a hash move
+    static final int PROBCUT_MIN_DEPTH = 6;					// ProbCut: shallower nodes are not pruned
+    static final int PROBCUT_GAP = 4;						// ProbCut: depth of the deep search - depth of the shallow one
+    private static final double PROBCUT_THRESHOLD = 1.5;	// ProbCut: standard deviations of confidence
+    static final int PROBCUT_MAX_SCORE = 1000;		// ProbCut: no pruning with bounds about wins and losses
     
 	private int whoAmI;			// red or white?
 	
 	// iterative deepening
-	private Deadline deadline;
+	private Deadline deadline;	// null for helper threads
     private boolean timeout;    // set to true when deadline is almost reached
     private int currentDepth;  	// depth of current iteration
+    private int completedDepth;	// depth of the last completed iteration
+    private long bestMove;		// best move of the last completed iteration
+    private int bestScore;		// score of the last completed iteration
+    private int maxDepth = Integer.MAX_VALUE;	// iterative deepening stops after this depth
+    private boolean mtdf;		// MTD(f) instead of aspiration windows at the root
+    
+    // late move reductions: quiet moves after the first lmrMoves are searched lmrReduction plies shallower
+    private int lmrMoves = 3;
+    private int lmrDepth = 3;		// minimum depth left for reducing
+    private int lmrReduction = 1;	// 0 for no reductions
+    
+    // ProbCut: the score of the player moving at depth D is predicted from the one
+    // at depth D-PROBCUT_GAP as a*score + b, with an error of standard deviation sigma
+    // (fitted by ProbCutCalibration, the defaults at depth 10 on 500 states)
+    private boolean probcut;
+    private double probcutA = 0.994;
+    private double probcutB = 0.033;
+    private double probcutSigma = 1.563;
+    
+    // enhanced transposition cutoffs: the children of nodes with at least etcDepth
+    // plies left are looked up in the transposition table before searching them
+    private int etcDepth = 3;	// 0 for no lookups
+    private long[] etcMoves = new long[GameState.MAX_MOVES];
+    
+    // internal iterative deepening: PV nodes with at least iidDepth plies left and no
+    // hash move are searched IID_REDUCTION plies shallower first, for finding one
+    private int iidDepth = 5;	// 0 for never
+    
+    // endgame tablebase, the search stops at the states in it reached by a conversion
+    // (a jump or a promotion) from the root, with rootPieces pieces and rootMen men
+    private EndgameTablebase tablebase;
+    private int rootPieces;
+    private int rootMen;
+    
+    // opening book, the states in it are not searched
+    private OpeningBook book;
+    
+    // lazy SMP: helper threads search the same state, sharing the transposition table
+    private Player[] helpers = new Player[0];
+    private AtomicBoolean stop = new AtomicBoolean();	// set when helpers have to return
+    
+    // YBWC: the search is split among the threads of a pool, each task searching with
+    // a worker of its own (with its own buffers), taken from the idle ones while it runs
+    private ForkJoinPool pool;		// null if the search is serial
+    private Deque<Player> idleWorkers = new ConcurrentLinkedDeque<>();
+    private List<Player> workerList = new CopyOnWriteArrayList<>();
+    private Player master = this;	// player owning the pool
+    private SplitPoint splitPoint;	// split point of the task of a worker
+    private long stopTime = Long.MAX_VALUE;	// wall-clock time (System.nanoTime()) at which workers stop
     
     // repeated state checking
-    private HashMap<String, Integer> transpositionTable;
+    private TranspositionTable transpositionTable;
+    private TranspositionTable.Entry entry = new TranspositionTable.Entry();
+    
+    // search buffers
+    private MovePicker[] movePickers = new MovePicker[64];  // moves picked at each ply
+    private int[] priorities = new int[GameState.MAX_MOVES];     // used by move ordering
+    private Random random = new Random();
+    
+    // move ordering heuristics
+    private long[] killers = new long[2*64];	// the last two normal moves causing a cutoff at each ply
+    private int[] history = new int[32*32];		// normal moves by (from, to), weighted by the cutoffs they caused
     
     // stats
     private long nodeVisited;
+    private long cutoffs;
+    private long firstMoveCutoffs;	// cutoffs caused by the first move searched
+    private long reducedMoves;
+    private long researchedMoves;	// reduced moves searched again at full depth
+    private long probcutTries;
+    private long probcutCuts;
+    private long etcTries;
+    private long etcCuts;
+    private long iidSearches;
+    private long tablebaseHits;
     
     /**
      * Performs a move
@@ -42,72 +122,458 @@ public class Player {
      * @return the next state the board is in after our move
      */
     public GameState play(final GameState pState, final Deadline pDue) {
-    	GameState choice;
+    	long[] moves = new long[GameState.MAX_MOVES];
+    	int nMoves;
+    	long choice;
+    	int reachedDepth;
+    	
+        // empty => pass
+    	bestScore = 0;
+    	nMoves = pState.findPossibleMoves(moves);
+        if (nMoves == 0)
+            return new GameState(pState, new Move());
+        
+        // no alternatives => useless search
+        if (nMoves == 1)
+        	return new GameState(pState, new Move(moves[0]));
+        
+        // known opening => no search (the move is checked, states may share a hash)
+        if (book != null) {
+        	long move = book.probe(pState);
+        	for (int i=0; i<nMoves; i++) {
+        		if (moves[i] == move) {
+        			System.err.println("Book move");
+        			return new GameState(pState, new Move(move));
+        		}
+        	}
+        }
+        
+    	if (transpositionTable == null)
+    		transpositionTable = new TranspositionTable(DEFAULT_HASH_SIZE);
+    	
+    	// entries of previous turns are still useful, but they can be replaced
+    	transpositionTable.newSearch();
+    	
+    	// killers are about the states of the previous search, history is still useful
+    	Arrays.fill(killers, 0);
+    	ageHistory();
     	
     	// init stats
-    	nodeVisited = 0;
+    	resetStats();
     	
     	// search move
         whoAmI = pState.getNextPlayer();
         deadline = pDue;
-        choice = alphabeta(pState);
+        setRoot(pState);
+        if (pool != null)
+        	prepareWorkers(pDue);
+        Thread[] threads = startHelpers(pState);
+        alphabeta(pState, INITIAL_DEPTH);
+        stopHelpers(threads);
+        
+        // take the deepest completed search (the one of this thread if equal),
+        // with its score as well
+        reachedDepth = currentDepth;
+        for (Player helper : helpers) {
+        	if (helper.completedDepth > completedDepth) {
+        		completedDepth = helper.completedDepth;
+        		bestMove = helper.bestMove;
+        		bestScore = helper.bestScore;
+        	}
+        	addStats(helper);
+        	reachedDepth = Math.max(reachedDepth, helper.currentDepth);
+        }
+        for (Player worker : workerList)
+        	addStats(worker);
+        choice = bestMove;
         
         // print stats
         System.err.println("Node visited: " + nodeVisited);
-        System.err.println("Max depth reached: " + currentDepth);
+        System.err.println("Max depth reached: " + reachedDepth);
+        System.err.printf("First move cutoffs: %.1f%%%n", 100.0 * firstMoveCutoffs / Math.max(cutoffs, 1));
+        System.err.printf("LMR (after %d moves, depth >= %d, by %d): %d moves reduced, %.1f%% re-searched%n",
+        		lmrMoves, lmrDepth, lmrReduction, reducedMoves, 100.0 * researchedMoves / Math.max(reducedMoves, 1));
+        if (etcDepth > 0)
+        	System.err.printf("ETC (depth >= %d): %d nodes cut out of %d looked up%n", etcDepth, etcCuts, etcTries);
+        if (tablebase != null)
+        	System.err.println("Tablebase hits: " + tablebaseHits);
+        if (iidDepth > 0)
+        	System.err.printf("IID (depth >= %d): %d searches%n", iidDepth, iidSearches);
+        if (probcut)
+        	System.err.printf("ProbCut (a=%.3f, b=%.3f, sigma=%.3f): %d nodes pruned out of %d tried%n",
+        			probcutA, probcutB, probcutSigma, probcutCuts, probcutTries);
         
-        return choice;
+        return new GameState(pState, new Move(choice));
+    }
+    
+    /**
+     * Sets the transposition table used by the search, instead of the
+     * default one of DEFAULT_HASH_SIZE MB (e.g. a MappedTranspositionTable).
+     */
+    public void setTranspositionTable(TranspositionTable table) {
+    	transpositionTable = table;
+    }
+    
+    /**
+     * Sets the number of threads searching (lazy SMP), 1 by default.
+     */
+    public void setThreads(int threads) {
+    	helpers = new Player[threads-1];
+    	for (int i=0; i<helpers.length; i++) {
+    		helpers[i] = new Player();
+    		helpers[i].stop = stop;
+    	}
+    }
+    
+    /**
+     * Sets the number of threads of the YBWC search, 0 (the default) for a
+     * serial search. It can be combined with setThreads(), in which case only
+     * this thread uses YBWC.
+     *
+     * The search is not deterministic: the workers share the transposition
+     * table, and the window a younger brother starts with depends on which
+     * of its brothers finished first. The move chosen at a fixed depth can
+     * then change from a run to another, like with setThreads().
+     */
+    public void setParallelSearch(int threads) {
+    	pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    }
+    
+    /**
+     * Sets whether the root is searched with MTD(f) instead of principal
+     * variation search with aspiration windows (the default).
+     */
+    public void setMTDF(boolean mtdf) {
+    	this.mtdf = mtdf;
+    }
+    
+    /**
+     * Sets the late move reductions: quiet normal moves (not promoting nor
+     * giving a jump to the opponent) after the first moves searched are
+     * searched with a reduced depth, and again at full depth only if they
+     * turn out better than the best move so far.
+     *
+     * @param moves
+     *            moves searched at full depth before reducing (3 by default)
+     * @param depth
+     *            minimum depth left for reducing (3 by default)
+     * @param reduction
+     *            plies of reduction (1 by default), 0 for no reductions
+     */
+    public void setLateMoveReductions(int moves, int depth, int reduction) {
+    	lmrMoves = moves;
+    	lmrDepth = depth;
+    	lmrReduction = reduction;
+    }
+    
+    /**
+     * Sets the minimum depth left for enhanced transposition cutoffs (3 by
+     * default, 0 for none): before searching the moves of a node, the states
+     * after them are looked up in the transposition table, since one of them
+     * may already prove a cutoff.
+     */
+    public void setETCDepth(int depth) {
+    	etcDepth = depth;
+    }
+    
+    /**
+     * Sets the minimum depth left for internal iterative deepening (5 by
+     * default, 0 for none): a PV node without a move in the transposition
+     * table is first searched at a reduced depth, so that the best move found
+     * is searched first by the full search.
+     */
+    public void setIIDDepth(int depth) {
+    	iidDepth = depth;
+    }
+    
+    /**
+     * Sets the endgame tablebase looked up by the search, null (the default)
+     * for none. Only the states reached by a jump or a promotion are looked
+     * up, and wins and losses only with enough moves left before the draw.
+     */
+    public void setTablebase(EndgameTablebase tablebase) {
+    	this.tablebase = tablebase;
+    }
+    
+    /**
+     * Sets the opening book looked up before searching, null (the default)
+     * for none.
+     */
+    public void setOpeningBook(OpeningBook book) {
+    	this.book = book;
+    }
+    
+    /**
+     * Sets whether nodes are pruned with ProbCut (off by default): at depth D,
+     * a shallow search at depth D-PROBCUT_GAP with a null window shifted
+     * according to the regression parameters tells whether the deep search
+     * would fail high (or low) with enough confidence, in which case it is
+     * skipped.
+     */
+    public void setProbCut(boolean probcut) {
+    	this.probcut = probcut;
+    }
+    
+    /**
+     * Sets the regression parameters of ProbCut, as printed by
+     * ProbCutCalibration.
+     *
+     * @param a
+     *            slope
+     * @param b
+     *            intercept
+     * @param sigma
+     *            standard deviation of the error
+     */
+    public void setProbCutParameters(double a, double b, double sigma) {
+    	probcutA = a;
+    	probcutB = b;
+    	probcutSigma = sigma;
+    }
+    
+    /**
+     * Sets the depth after which iterative deepening stops, even if there is
+     * still time (e.g. for comparing searches at a fixed depth).
+     */
+    public void setMaxDepth(int depth) {
+    	maxDepth = depth;
+    }
+    
+    /**
+     * Gets the score of the move chosen by the last call to play(), from the
+     * point of view of the player moving, according to the deepest search
+     * completed by any thread (0 if the move was forced).
+     */
+    public int getScore() {
+    	return bestScore;
+    }
+    
+    /**
+     * Gets the number of nodes visited by the last call to play(), by all the
+     * threads.
+     */
+    public long getNodeVisited() {
+    	return nodeVisited;
     }
     
-    private GameState alphabeta(GameState state) {
-        Vector<GameState> nextStates = new Vector<>();
-        int v = Integer.MIN_VALUE;
-        GameState finalChoice = null;
-        GameState tmpChoice = null;
+    /**
+     * Starts the helper threads, which search the same state as this thread
+     * until stopHelpers() is called. Half of them start one ply deeper, and
+     * move ordering is random among equal moves, so that they don't all
+     * search the same nodes at the same time.
+     */
+    private Thread[] startHelpers(final GameState state) {
+    	Thread[] threads = new Thread[helpers.length];
+    	stop.set(false);
+    	for (int i=0; i<helpers.length; i++) {
+    		final Player helper = helpers[i];
+    		final int initialDepth = INITIAL_DEPTH + (i+1)%2;
+    		helper.whoAmI = whoAmI;
+    		helper.rootPieces = rootPieces;
+    		helper.rootMen = rootMen;
+    		helper.deadline = null;
+    		helper.transpositionTable = transpositionTable;
+    		helper.copySettings(this);
+    		helper.resetStats();
+    		Arrays.fill(helper.killers, 0);
+    		helper.ageHistory();
+    		threads[i] = new Thread(() -> helper.alphabeta(state, initialDepth));
+    		threads[i].start();
+    	}
+    	return threads;
+    }
+    
+    private void stopHelpers(Thread[] threads) {
+    	stop.set(true);
+    	for (Thread thread : threads) {
+    		try {
+    			thread.join();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    }
+    
+    /**
+     * Iterative deepening from the state, until timeout. The result is left
+     * in bestMove and completedDepth.
+     */
+    private void alphabeta(GameState state, int initialDepth) {
+        GameState board = new GameState(state);  // the search runs in place on it
+        long[] rootMoves = new long[GameState.MAX_MOVES];
+        int nMoves;
+        long finalChoice, tmpChoice;
+        int score = 0;		// score of the last completed iteration
         
-        // fill next states
-        state.findPossibleMoves(nextStates);
+        // fill next moves
+        nMoves = board.findPossibleMoves(rootMoves);
         
-        // empty => pass
-        if (nextStates.isEmpty())
-            return new GameState(state, new Move());
-
-        // no alternatives => useless search
-        if (nextStates.size() == 1)
-        	return nextStates.firstElement();
+        // in case not even the first iteration completes
+        finalChoice = rootMoves[0];
+        completedDepth = 0;
         
-    	currentDepth = INITIAL_DEPTH-1;
+    	currentDepth = initialDepth-1;
     	timeout = false;
-        while (!timeout) {
-            // save result of the previous completed iteration
-            finalChoice = tmpChoice;
+        while (!timeout && currentDepth < maxDepth) {
+            int v = 0;
+            tmpChoice = finalChoice;
             
             // prepare new iteration
             currentDepth++;
-            transpositionTable = new HashMap<>();
             
-            // move ordering
-            moveOrdering(state, nextStates, currentDepth);
+            // move ordering (best move of the previous iteration first)
+            moveOrdering(board, rootMoves, nMoves, finalChoice, 0);
             
-            // find action maximizing the "utility"
-            for (int i=0; i<nextStates.size() && !timeout; i++) {
-                GameState s = nextStates.elementAt(i);
-                int tmp = alphabetaR(s, currentDepth-1, Integer.MIN_VALUE, Integer.MAX_VALUE);
-                if (tmp > v) {
-                    v = tmp;        // max
-                    tmpChoice = s;  // argmax
-                }
+            if (mtdf) {
+            	v = mtdf(board, rootMoves, nMoves, score);
+            	tmpChoice = rootMoves[0];
+            }
+            else {
+	            // aspiration window around the score of the previous iteration,
+	            // widened until the score falls inside it
+	            long delta = ASPIRATION_WINDOW;
+	            int alpha = Integer.MIN_VALUE, beta = Integer.MAX_VALUE;
+	            if (completedDepth > 0) {
+	            	alpha = clamp(score - delta);
+	            	beta = clamp(score + delta);
+	            }
+	            while (true) {
+	            	v = searchRoot(board, rootMoves, nMoves, alpha, beta);
+	            	if (timeout)
+	            		break;
+	            	tmpChoice = rootMoves[0];
+	            	delta *= 4;
+	            	if (v <= alpha && alpha != Integer.MIN_VALUE)
+	            		alpha = clamp(v - delta);	// fail-low
+	            	else if (v >= beta && beta != Integer.MAX_VALUE)
+	            		beta = clamp(v + delta);	// fail-high
+	            	else
+	            		break;
+	            }
+            }
+            
+            // save result of the completed iteration
+            if (!timeout) {
+                finalChoice = tmpChoice;
+                completedDepth = currentDepth;
+                score = v;
+                
+                // the game ends within the depth searched, deeper searches can't change it
+                if (Math.abs(score) >= WIN - currentDepth)
+                	break;
             }
         }
         
-        return finalChoice;
+        bestMove = finalChoice;
+        bestScore = score;
     }
     
-    private int alphabetaR(GameState state, int depth, int alpha, int beta) {
+    /**
+     * Searches the moves of the root with principal variation search (see
+     * alphabetaR()). The best move found is moved first.
+     */
+    private int searchRoot(GameState board, long[] rootMoves, int nMoves, int alpha, int beta) {
+    	// YBWC: a worker searches, this thread only waits
+    	if (pool != null) {
+    		Integer v = pool.invoke(new RootTask(this, board, rootMoves, nMoves, currentDepth, alpha, beta));
+    		if (v == null)
+    			timeout = true;
+    		return timeout ? 0 : v;
+    	}
+    	
+    	int v = Integer.MIN_VALUE;
+    	for (int i=0; i<nMoves; i++) {
+    		// YBWC: the younger brothers are searched in parallel
+    		if (i == 1 && canSplit(currentDepth)) {
+    			SplitPoint node = split(board, rootMoves, 1, nMoves, true, currentDepth, 0, alpha, beta, v, rootMoves[0]);
+    			if (timeout)
+    				return 0;
+    			int best = 0;
+    			while (rootMoves[best] != node.bestMove)
+    				best++;
+    			System.arraycopy(rootMoves, 0, rootMoves, 1, best);
+    			rootMoves[0] = node.bestMove;
+    			return node.value;
+    		}
+    		
+    		long move = rootMoves[i];
+    		long undo = board.makeMove(move);
+    		int tmp;
+    		if (i == 0)
+    			tmp = alphabetaR(board, currentDepth-1, 1, alpha, beta);
+    		else
+    			tmp = searchLater(board, true, false, i, currentDepth, 0, alpha, beta);
+    		board.unmakeMove(move, undo);
+    		if (timeout)
+    			return 0;
+    		if (tmp > v) {
+    			v = tmp;            // max
+    			System.arraycopy(rootMoves, 0, rootMoves, 1, i);
+    			rootMoves[0] = move;	// argmax
+    		}
+    		if (tmp > alpha)
+    			alpha = tmp;
+    		if (beta <= alpha)
+    			break;
+    	}
+    	return v;
+    }
+    
+    /**
+     * MTD(f): converges to the value of the root with a sequence of null
+     * window searches, starting from a guess (the value of the previous
+     * iteration). The searches are cheap because each of them reuses the
+     * bounds left in the transposition table by the previous ones. The best
+     * move is moved first.
+     */
+    private int mtdf(GameState board, long[] rootMoves, int nMoves, int guess) {
+    	int lower = Integer.MIN_VALUE, upper = Integer.MAX_VALUE;
+    	int g = guess;
+    	long best = 0;
+    	while (lower < upper) {
+    		int beta = g == lower ? g+1 : g;
+    		g = searchRoot(board, rootMoves, nMoves, beta-1, beta);
+    		if (timeout)
+    			return 0;
+    		if (g < beta)
+    			upper = g;	// fail-low
+    		else {
+    			lower = g;	// fail-high, the best move is the one proving it
+    			best = rootMoves[0];
+    		}
+    	}
+    	
+    	// the last search may have failed low
+    	if (best != 0) {
+    		int i = 0;
+    		while (rootMoves[i] != best)
+    			i++;
+    		System.arraycopy(rootMoves, 0, rootMoves, 1, i);
+    		rootMoves[0] = best;
+    	}
+    	return g;
+    }
+    
+    private static int clamp(long score) {
+    	return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, score));
+    }
+    
+    /**
+     * Searches the subtree of the state, making and unmaking the moves on the
+     * state itself, which is left unchanged on return.
+     *
+     * Principal variation search: the first move (the best one, if move
+     * ordering is right) is searched with the whole window, the others with a
+     * null window that can only tell whether they are better. They are
+     * searched again with the whole window only if they are.
+     */
+    private int alphabetaR(GameState state, int depth, int ply, int alpha, int beta) {
         int player = state.getNextPlayer();
-        Vector<GameState> nextStates = new Vector<>();
-        Integer v;
-        String key;
+        MovePicker picker;
+        long move;
+        int v;
+        int alphaOriginal = alpha, betaOriginal = beta;
+        long hashMove = 0, bestMove = 0;
         
         // check deadline
         if (timeout(depth)) {
@@ -119,177 +585,850 @@ public class Player {
         nodeVisited++;
         
         // check repeated state
-        key = getKey(state, depth);
-        v = transpositionTable.get(key);
-        if (v != null)
-            return v;
-        
-        // fill next states
-        state.findPossibleMoves(nextStates);
+        if (getKnownState(state, ply)) {
+            hashMove = entry.move;
+            if (entry.depth >= depth) {
+                if (entry.bound == TranspositionTable.BOUND_EXACT)
+                    return entry.score;
+                if (entry.bound == TranspositionTable.BOUND_LOWER && entry.score > alpha)
+                    alpha = entry.score;
+                else if (entry.bound == TranspositionTable.BOUND_UPPER && entry.score < beta)
+                    beta = entry.score;
+                if (beta <= alpha)
+                    return entry.score;
+            }
+        }
         
         // cutoff test
-        if (depth == 0 || nextStates.isEmpty()) {
-            v = evaluate(state);
-            addKnownState(key, v);
+        if (state.isEOG()) {
+            v = evaluate(state, ply);
+            addKnownState(state, ply, depth, v, TranspositionTable.BOUND_EXACT, 0);
             return v;
         }
         
-        // move ordering
-        moveOrdering(state, nextStates, depth);
+        // mate distance pruning: from here, the game ends at the next ply at
+        // the soonest, so nothing can do better than winning there
+        alpha = Math.max(alpha, -WIN + ply + 1);
+        beta = Math.min(beta, WIN - ply - 1);
+        if (beta <= alpha)
+        	return alpha;
+        
+        // exact result in the endgame (not stored: whether it can be used depends on
+        // the root and on the moves left, which the hash doesn't tell)
+        if (tablebase != null && isConversion(state)) {
+        	int result = tablebase.probe(state);
+        	if (result == EndgameTablebase.DRAW ||
+        			(result != EndgameTablebase.UNKNOWN && state.getMovesUntilDraw() >= TABLEBASE_MIN_MOVES)) {
+        		tablebaseHits++;
+        		return getTablebaseScore(state, result, ply);
+        	}
+        }
+        
+        // horizon, pending jumps are resolved first
+        if (depth == 0) {
+        	v = quiesce(state, ply, alpha, beta);
+        	if (timeout)
+        		return 0;   // end search
+        	addKnownState(state, ply, 0, v, getBound(v, alphaOriginal, betaOriginal), 0);
+        	return v;
+        }
+        
+        // a child may already be known to cause a cutoff
+        if (etcDepth > 0 && depth >= etcDepth) {
+        	v = transpositionCutoff(state, depth, ply, alpha, beta);
+        	if (v != 0) {
+        		addKnownState(state, ply, depth, entry.score, v > 0 ? TranspositionTable.BOUND_LOWER :
+        				TranspositionTable.BOUND_UPPER, entry.move);
+        		return entry.score;
+        	}
+        }
+        
+        // forward pruning, only in null-window searches
+        if (probcut && depth >= PROBCUT_MIN_DEPTH && beta == alpha+1 &&
+        		alpha > -PROBCUT_MAX_SCORE && beta < PROBCUT_MAX_SCORE) {
+        	v = probcut(state, depth, ply, alpha, beta);
+        	if (timeout)
+        		return 0;   // end search
+        	if (v != 0)
+        		return v > 0 ? beta : alpha;
+        }
+        
+        // no hash move in a PV node, a shallower search finds one
+        if (hashMove == 0 && iidDepth > 0 && depth >= iidDepth && beta > alpha+1) {
+        	iidSearches++;
+        	alphabetaR(state, depth-IID_REDUCTION, ply, alpha, beta);
+        	if (timeout)
+        		return 0;   // end search
+        	if (getKnownState(state, ply))
+        		hashMove = entry.move;
+        }
+        
+        // next moves, generated lazily and best first
+        picker = getMovePicker(ply);
+        picker.init(state, hashMove, killers[2*ply], killers[2*ply+1]);
         
         // it's me, I look for the maximum
         if (player == whoAmI) {
             v = Integer.MIN_VALUE;
-            for (GameState s : nextStates) {
-                int tmp = alphabetaR(s, depth-1, alpha, beta);
+            for (int i=0; (move = picker.next()) != 0; i++) {
+            	// YBWC: the younger brothers are searched in parallel
+            	if (i == 1 && canSplit(depth)) {
+            		SplitPoint node = split(state, picker, move, true, depth, ply, alpha, beta, v, bestMove);
+            		if (timeout)
+            			return 0;   // end search
+            		v = node.value;
+            		bestMove = node.bestMove;
+            		if (node.cutoff)
+            			addCutoff(bestMove, i, depth, ply);
+            		break;
+            	}
+            	
+                boolean quiet = isQuiet(state, move);
+                long undo = state.makeMove(move);
+                int tmp;
+                if (i == 0)
+                	tmp = alphabetaR(state, depth-1, ply+1, alpha, beta);
+                else
+                	tmp = searchLater(state, true, quiet, i, depth, ply, alpha, beta);
+                state.unmakeMove(move, undo);
                 if (timeout)
                 	return 0;   // end search
-                if (tmp > v)
+                if (tmp > v) {
                     v = tmp;
+                    bestMove = move;
+                }
                 if (tmp > alpha)
                     alpha = tmp;
-                if (beta <= alpha)
+                if (beta <= alpha) {
+                	addCutoff(move, i, depth, ply);
                     break;
+                }
             }
         }
         // it's the opponent, he looks for the minimum
         else {
             v = Integer.MAX_VALUE;
-            for (GameState s : nextStates) {
-                int tmp = alphabetaR(s, depth-1, alpha, beta);
+            for (int i=0; (move = picker.next()) != 0; i++) {
+            	// YBWC: the younger brothers are searched in parallel
+            	if (i == 1 && canSplit(depth)) {
+            		SplitPoint node = split(state, picker, move, false, depth, ply, alpha, beta, v, bestMove);
+            		if (timeout)
+            			return 0;   // end search
+            		v = node.value;
+            		bestMove = node.bestMove;
+            		if (node.cutoff)
+            			addCutoff(bestMove, i, depth, ply);
+            		break;
+            	}
+            	
+                boolean quiet = isQuiet(state, move);
+                long undo = state.makeMove(move);
+                int tmp;
+                if (i == 0)
+                	tmp = alphabetaR(state, depth-1, ply+1, alpha, beta);
+                else
+                	tmp = searchLater(state, false, quiet, i, depth, ply, alpha, beta);
+                state.unmakeMove(move, undo);
 	            if (timeout)
 	                return 0;   // end search
-                if (tmp < v)
+                if (tmp < v) {
                     v = tmp;
+                    bestMove = move;
+                }
                 if (tmp < beta)
                     beta = tmp;
-                if (beta <= alpha)
+                if (beta <= alpha) {
+                	addCutoff(move, i, depth, ply);
                     break;
+                }
             }
         }
         
         // add known state for repeated state checking
-        addKnownState(key, v);
+        addKnownState(state, ply, depth, v, getBound(v, alphaOriginal, betaOriginal), bestMove);
+        
+        return v;
+    }
+    
+    /**
+     * Searches a move after the first one of a node, already made on the
+     * state, with a null window (at a reduced depth for late quiet moves, see
+     * reduction()), which can only tell whether it is better than the best
+     * move so far. Only then it is searched again at full depth and with the
+     * whole window.
+     *
+     * @param max
+     *            true if it's me moving in the node
+     * @param quiet
+     *            whether the move is quiet (see isQuiet())
+     * @param i
+     *            index of the move among the ones of the node
+     */
+    private int searchLater(GameState state, boolean max, boolean quiet, int i, int depth, int ply, int alpha, int beta) {
+    	int r = reduction(state, quiet, i, depth);
+    	int tmp;
+    	if (max) {
+    		tmp = alphabetaR(state, depth-1-r, ply+1, alpha, alpha+1);
+    		if (r > 0 && tmp > alpha && !timeout) {
+    			researchedMoves++;
+    			tmp = alphabetaR(state, depth-1, ply+1, alpha, alpha+1);
+    		}
+    	}
+    	else {
+    		tmp = alphabetaR(state, depth-1-r, ply+1, beta-1, beta);
+    		if (r > 0 && tmp < beta && !timeout) {
+    			researchedMoves++;
+    			tmp = alphabetaR(state, depth-1, ply+1, beta-1, beta);
+    		}
+    	}
+    	if (tmp > alpha && tmp < beta && !timeout)
+    		tmp = alphabetaR(state, depth-1, ply+1, alpha, beta);
+    	return tmp;
+    }
+    
+    /**
+     * Enhanced transposition cutoffs: looks up the states after the moves in
+     * the transposition table, without making them, for a bound of a child
+     * proving that the state fails high (for me) or low (for the opponent).
+     * On a cutoff, the bound is left in entry, with the move in entry.move.
+     *
+     * @return 1 if the state fails high, -1 if it fails low, 0 if unknown
+     */
+    private int transpositionCutoff(GameState state, int depth, int ply, int alpha, int beta) {
+    	boolean max = state.getNextPlayer() == whoAmI;
+    	int nMoves = state.findPossibleMoves(etcMoves);
+    	
+    	etcTries++;
+    	for (int i=0; i<nMoves; i++) {
+    		long move = etcMoves[i];
+    		if (!getKnownState(state.hashAfter(move), ply+1) || entry.depth < depth-1)
+    			continue;
+    		if (max && entry.bound != TranspositionTable.BOUND_UPPER && entry.score >= beta) {
+    			etcCuts++;
+    			entry.move = move;
+    			return 1;
+    		}
+    		if (!max && entry.bound != TranspositionTable.BOUND_LOWER && entry.score <= alpha) {
+    			etcCuts++;
+    			entry.move = move;
+    			return -1;
+    		}
+    	}
+    	return 0;
+    }
+    
+    /**
+     * ProbCut: predicts the result of the search of the state from a shallow
+     * search, with a null window at the bound which a score at the shallow
+     * depth has to pass for the deep score to pass beta (or alpha) with
+     * enough confidence.
+     *
+     * @return 1 if the deep search would fail high, -1 if it would fail low,
+     *         0 if unsure
+     */
+    private int probcut(GameState state, int depth, int ply, int alpha, int beta) {
+    	// the regression is from the point of view of the player moving
+    	int sign = state.getNextPlayer() == whoAmI ? 1 : -1;
+    	double margin = PROBCUT_THRESHOLD * probcutSigma;
+    	int shallow = depth - PROBCUT_GAP;
+    	
+    	probcutTries++;
+    	int high = (int) Math.ceil((beta - sign*probcutB + margin) / probcutA);
+    	if (alphabetaR(state, shallow, ply, high-1, high) >= high) {
+    		probcutCuts++;
+    		return 1;
+    	}
+    	if (timeout)
+    		return 0;
+    	int low = (int) Math.floor((alpha - sign*probcutB - margin) / probcutA);
+    	if (alphabetaR(state, shallow, ply, low, low+1) <= low) {
+    		probcutCuts++;
+    		return -1;
+    	}
+    	return 0;
+    }
+    
+    /**
+     * Checks whether a move is quiet, i.e. a normal move not promoting (before
+     * making it).
+     */
+    private static boolean isQuiet(GameState state, long move) {
+    	return Move.isNormal(move) && !state.isPromotion(move);
+    }
+    
+    /**
+     * Gets the plies by which the i-th move searched is reduced (LMR), given
+     * the state after it. A quiet move giving a jump to the opponent is not
+     * reduced either, since it starts an exchange.
+     */
+    private int reduction(GameState child, boolean quiet, int i, int depth) {
+    	if (!quiet || i < lmrMoves || depth < lmrDepth || lmrReduction <= 0 || child.hasJumps())
+    		return 0;
+    	reducedMoves++;
+    	return Math.min(lmrReduction, depth-1);
+    }
+    
+    /**
+     * Quiescence search: at the horizon, the evaluation is wrong if the player
+     * moving has to capture, so the jumps are searched until a quiet state.
+     * Since jumps are compulsory, the player can't stand pat (i.e. take the
+     * evaluation) while there are jumps, only in quiet states.
+     */
+    private int quiesce(GameState state, int ply, int alpha, int beta) {
+    	MovePicker picker;
+    	long move;
+    	int v;
+    	
+        // check deadline
+        if (timeout(0)) {
+            timeout = true;
+            return 0;   // end search
+        }
         
+        // update stats
+        nodeVisited++;
+        
+        // the only move left is the draw
+        if (!state.isEOG() && state.getMovesUntilDraw() <= 0)
+        	return 0;
+        
+        // stand pat
+        if (state.isEOG() || !state.hasJumps())
+        	return evaluate(state, ply);
+        
+        // only jumps are legal, the picker gives nothing else
+        picker = getMovePicker(ply);
+        picker.init(state, 0, 0, 0);
+        
+        // it's me, I look for the maximum
+        if (state.getNextPlayer() == whoAmI) {
+        	v = Integer.MIN_VALUE;
+        	while ((move = picker.next()) != 0) {
+        		long undo = state.makeMove(move);
+        		int tmp = quiesce(state, ply+1, alpha, beta);
+        		state.unmakeMove(move, undo);
+        		if (timeout)
+        			return 0;   // end search
+        		v = Math.max(v, tmp);
+        		alpha = Math.max(alpha, tmp);
+        		if (beta <= alpha)
+        			break;
+        	}
+        }
+        // it's the opponent, he looks for the minimum
+        else {
+        	v = Integer.MAX_VALUE;
+        	while ((move = picker.next()) != 0) {
+        		long undo = state.makeMove(move);
+        		int tmp = quiesce(state, ply+1, alpha, beta);
+        		state.unmakeMove(move, undo);
+        		if (timeout)
+        			return 0;   // end search
+        		v = Math.min(v, tmp);
+        		beta = Math.min(beta, tmp);
+        		if (beta <= alpha)
+        			break;
+        	}
+        }
         return v;
     }
     
-    private int evaluate(GameState state) {
+    /*
+     * YBWC (Young Brothers Wait Concept): the eldest child of a node is
+     * searched first, then the younger brothers are searched in parallel with
+     * the window updated by it. When one of them causes a cutoff, the others
+     * are cancelled. Nodes shallower than MIN_SPLIT_DEPTH are searched
+     * serially.
+     *
+     * The nodes are searched by alphabetaR() (and the root by searchRoot()),
+     * which splits after the eldest brother, so the parallel search prunes
+     * and looks up the same as the serial one. Each task takes a worker for
+     * itself while it runs, since other tasks can run on its thread while it
+     * waits for the brothers, and they would overwrite its buffers.
+     *
+     * The workers share the transposition table, like the lazy SMP helpers,
+     * and order the moves with the same random tie-break, so the search is
+     * timing-dependent rather than deterministic. A table for each worker
+     * would give up most of what the brothers learn from each other (e.g.
+     * the hash moves of the states reached by transpositions), and even then
+     * the windows and the cutoffs would still depend on which brother
+     * finishes first.
+     */
+    
+    private Player getWorker() {
+    	Player worker = idleWorkers.poll();
+    	if (worker == null) {
+    		worker = new Player();
+    		worker.master = this;
+    		worker.stop = stop;
+    		prepareWorker(worker);
+    		workerList.add(worker);
+    	}
+    	return worker;
+    }
+    
+    private void prepareWorkers(Deadline due) {
+    	// the main thread waits while the workers search, so its CPU time can't be used
+    	long now = System.nanoTime();
+    	long timeLeft = due.timeUntil() - MARGIN_DEADLINE;
+    	stopTime = timeLeft < Long.MAX_VALUE - now ? now + timeLeft : Long.MAX_VALUE;
+    	for (Player worker : workerList)
+    		prepareWorker(worker);
+    }
+    
+    private void prepareWorker(Player worker) {
+    	worker.whoAmI = whoAmI;
+    	worker.rootPieces = rootPieces;
+    	worker.rootMen = rootMen;
+    	worker.deadline = null;
+    	worker.transpositionTable = transpositionTable;
+    	worker.stopTime = stopTime;
+    	worker.copySettings(this);
+    	worker.resetStats();
+    	Arrays.fill(worker.killers, 0);
+    	worker.ageHistory();
+    }
+    
+    /**
+     * Checks whether a node is deep enough to be split, by a worker.
+     */
+    private boolean canSplit(int depth) {
+    	return master != this && depth >= MIN_SPLIT_DEPTH;
+    }
+    
+    /**
+     * Checks whether the search below a split point is useless, because of
+     * timeout or because of a cutoff in one of its ancestors.
+     */
+    private boolean aborted(SplitPoint parent) {
+    	if (System.nanoTime() >= stopTime)
+    		stop.set(true);
+    	return stop.get() || (parent != null && parent.isCancelled());
+    }
+    
+    /**
+     * Searches in parallel the younger brothers of a node, the first of them
+     * already taken from the picker and the others still in it.
+     */
+    private SplitPoint split(GameState state, MovePicker picker, long move, boolean max, int depth, int ply,
+    		int alpha, int beta, int v, long bestMove) {
+    	// not a ply buffer, all of them are needed at once
+    	long[] brothers = new long[GameState.MAX_MOVES];
+    	int nBrothers = 0;
+    	for (; move != 0; move = picker.next())
+    		brothers[nBrothers++] = move;
+    	return split(state, brothers, 0, nBrothers, max, depth, ply, alpha, beta, v, bestMove);
+    }
+    
+    /**
+     * Searches in parallel the younger brothers of a node, once the eldest has
+     * been searched. On return, timeout is set if the search has been aborted
+     * (see aborted()).
+     *
+     * @param moves
+     *            the brothers, from first (included) to last (excluded)
+     * @param max
+     *            true if it's me moving in the node
+     * @param v
+     *            value of the eldest brother
+     * @param bestMove
+     *            the eldest brother
+     * @return the node with its value and best move
+     */
+    private SplitPoint split(GameState state, long[] moves, int first, int last, boolean max, int depth, int ply,
+    		int alpha, int beta, int v, long bestMove) {
+    	SplitPoint node = new SplitPoint(splitPoint, max, alpha, beta);
+    	node.value = v;
+    	node.bestMove = bestMove;
+    	
+    	GameState snapshot = new GameState(state);
+    	SplitTask[] tasks = new SplitTask[last-first];
+    	for (int i=first; i<last; i++)
+    		tasks[i-first] = new SplitTask(master, node, snapshot, moves[i], i, depth, ply);
+    	ForkJoinTask.invokeAll(tasks);
+    	
+    	if (aborted(splitPoint))
+    		timeout = true;
+    	return node;
+    }
+    
+    /**
+     * Node of the YBWC search, where the younger brothers share the window.
+     */
+    private static class SplitPoint {
+    	final SplitPoint parent;
+    	final boolean max;		// true if it's me moving
+    	int alpha, beta;
+    	int value;
+    	long bestMove;
+    	volatile boolean cutoff;
+    	
+    	SplitPoint(SplitPoint parent, boolean max, int alpha, int beta) {
+    		this.parent = parent;
+    		this.max = max;
+    		this.alpha = alpha;
+    		this.beta = beta;
+    		this.value = max ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    	}
+    	
+    	synchronized void update(long move, int v) {
+    		if (max ? v > value : v < value) {
+    			value = v;
+    			bestMove = move;
+    		}
+    		if (max && v > alpha)
+    			alpha = v;
+    		else if (!max && v < beta)
+    			beta = v;
+    		if (beta <= alpha)
+    			cutoff = true;	// the brothers still searching are cancelled
+    	}
+    	
+    	boolean isCancelled() {
+    		for (SplitPoint sp=this; sp!=null; sp=sp.parent)
+    			if (sp.cutoff)
+    				return true;
+    		return false;
+    	}
+    }
+    
+    /**
+     * Search of a younger brother, with the window of the split point at the
+     * time it starts (see searchLater()).
+     */
+    @SuppressWarnings("serial")	// never serialized
+    private static class SplitTask extends RecursiveAction {
+    	private final Player master;
+    	private final SplitPoint node;
+    	private final GameState state;
+    	private final long move;
+    	private final int index, depth, ply;
+    	
+    	SplitTask(Player master, SplitPoint node, GameState state, long move, int index, int depth, int ply) {
+    		this.master = master;
+    		this.node = node;
+    		this.state = state;
+    		this.move = move;
+    		this.index = index;
+    		this.depth = depth;
+    		this.ply = ply;
+    	}
+    	
+    	@Override
+    	protected void compute() {
+    		Player worker = master.getWorker();
+    		try {
+    			int alpha, beta;
+    			if (worker.aborted(node))
+    				return;
+    			synchronized (node) {
+    				alpha = node.alpha;
+    				beta = node.beta;
+    			}
+    			GameState child = new GameState(state);
+    			boolean quiet = ply > 0 && isQuiet(child, move);	// no reductions at the root
+    			child.makeMove(move);
+    			worker.splitPoint = node;
+    			worker.timeout = false;
+    			int v = worker.searchLater(child, node.max, quiet, index, depth, ply, alpha, beta);
+    			if (!worker.aborted(node))
+    				node.update(move, v);
+    		} finally {
+    			master.idleWorkers.push(worker);
+    		}
+    	}
+    }
+    
+    /**
+     * Search of the root (see searchRoot()).
+     *
+     * @return the value, null if the search has been aborted
+     */
+    @SuppressWarnings("serial")	// never serialized
+    private static class RootTask extends RecursiveTask<Integer> {
+    	private final Player master;
+    	private final GameState board;
+    	private final long[] rootMoves;
+    	private final int nMoves, depth, alpha, beta;
+    	
+    	RootTask(Player master, GameState board, long[] rootMoves, int nMoves, int depth, int alpha, int beta) {
+    		this.master = master;
+    		this.board = board;
+    		this.rootMoves = rootMoves;
+    		this.nMoves = nMoves;
+    		this.depth = depth;
+    		this.alpha = alpha;
+    		this.beta = beta;
+    	}
+    	
+    	@Override
+    	protected Integer compute() {
+    		Player worker = master.getWorker();
+    		try {
+    			worker.splitPoint = null;
+    			worker.timeout = false;
+    			worker.currentDepth = depth;
+    			int v = worker.searchRoot(board, rootMoves, nMoves, alpha, beta);
+    			return worker.timeout ? null : v;
+    		} finally {
+    			master.idleWorkers.push(worker);
+    		}
+    	}
+    }
+    
+    /**
+     * Gets the picker of the moves at a certain ply, so that the search
+     * doesn't allocate it at every node.
+     */
+    private MovePicker getMovePicker(int ply) {
+        if (ply >= movePickers.length)
+            movePickers = Arrays.copyOf(movePickers, 2*ply);
+        if (2*ply >= killers.length)
+            killers = Arrays.copyOf(killers, 4*ply);
+        if (movePickers[ply] == null)
+            movePickers[ply] = new MovePicker(history, random);
+        return movePickers[ply];
+    }
+    
+    /**
+     * Evaluates a state reached at a certain ply. The sooner a win, the
+     * higher its score (the later a loss, the higher its score).
+     */
+    private int evaluate(GameState state, int ply) {
     	int scoreMe = 0;
     	int scoreOpponent = 0;
-    	int cell;
     	
     	// terminal state, the result is certain
         if (state.isEOG()) {
             if (isWin(state))
-                return Integer.MAX_VALUE;
+                return WIN - ply;
             else if (isLoss(state))
-    			return Integer.MIN_VALUE + 1; // +1 because -(Integer.MIN_VALUE + 1) = Integer.MAX_VALUE (MIN_VALUE is 1 unit smaller than -MAX_VALUE)
+    			return -WIN + ply;
             else
                 return 0;   // draw
         }
     	
     	// pieces and kings
-    	for (int i = 0; i < GameState.NUMBER_OF_SQUARES; i++) {
-    		cell = state.get(i);
-    		if (cell == Constants.CELL_EMPTY)
-    			continue;
-    		
-    		if ((cell & whoAmI) != 0) {
-    			if ((cell & Constants.CELL_KING) != 0)
-    				scoreMe += WEIGHT_KING;
-    			else
-    				scoreMe += WEIGHT_PIECE;
-    		} else {
-    			if ((cell & Constants.CELL_KING) != 0)
-    				scoreOpponent += WEIGHT_KING;
-    			else
-    				scoreOpponent += WEIGHT_PIECE;
-    		}
-    	}
+    	int mine = state.getPieces(whoAmI);
+    	int opponent = state.getPieces(whoAmI ^ (Constants.CELL_RED | Constants.CELL_WHITE));
+    	int kings = state.getKings();
+    	scoreMe = WEIGHT_PIECE*Integer.bitCount(mine & ~kings) + WEIGHT_KING*Integer.bitCount(mine & kings);
+    	scoreOpponent = WEIGHT_PIECE*Integer.bitCount(opponent & ~kings) + WEIGHT_KING*Integer.bitCount(opponent & kings);
     	
     	return scoreMe - scoreOpponent;
     }
     
+    /**
+     * Sets the material of the root, for telling conversions from it.
+     */
+    private void setRoot(GameState state) {
+    	int pieces = state.getPieces(Constants.CELL_RED) | state.getPieces(Constants.CELL_WHITE);
+    	rootPieces = Integer.bitCount(pieces);
+    	rootMen = Integer.bitCount(pieces & ~state.getKings());
+    }
+    
+    /**
+     * Checks whether a state was reached by a conversion (a jump or a
+     * promotion) from the root. Conversions can't be undone, so the states
+     * with the same material as the root are searched even if they are in
+     * the tablebase: all the moves keeping a win would get the same score,
+     * and the search would have no reason to make progress.
+     */
+    private boolean isConversion(GameState state) {
+    	int pieces = state.getPieces(Constants.CELL_RED) | state.getPieces(Constants.CELL_WHITE);
+    	return Integer.bitCount(pieces) < rootPieces || Integer.bitCount(pieces & ~state.getKings()) < rootMen;
+    }
+    
+    /**
+     * Gets the score of a state with a known result. Since the tablebase
+     * doesn't tell how far a win is, the material is added, so that the
+     * winner is still led to trade pieces.
+     */
+    private int getTablebaseScore(GameState state, int result, int ply) {
+    	if (result == EndgameTablebase.DRAW)
+    		return 0;
+    	boolean won = (result == EndgameTablebase.WIN) == (state.getNextPlayer() == whoAmI);
+    	return (won ? KNOWN_WIN : -KNOWN_WIN) + evaluate(state, ply);
+    }
+    
     private boolean timeout(int depth) {
+    	if (deadline == null)
+    		return aborted(splitPoint);	// helper thread or YBWC worker, stopped by the main one
     	return deadline.timeUntil() <= MARGIN_DEADLINE + TIME_TO_RETURN*(currentDepth-depth);
     }
     
-    private void addKnownState(String key, int value) {
-    	transpositionTable.put(key, value);
-    	// add symmetric state (i.e. columns mirrored)
-	    transpositionTable.put(getSymmetricState(key), value);
+    /*
+     * Scores are stored from the point of view of red, so that the table can
+     * be shared with a white player (e.g. when it is memory-mapped by both).
+     * Wins and losses are stored as plies from the state instead of from the
+     * root, since the state can be reached at other plies.
+     */
+    
+    private boolean getKnownState(GameState state, int ply) {
+    	return getKnownState(state.hash(), ply);
     }
     
-    private String getKey(GameState state, int depth) {
-    	String[] parts = state.toMessage().split(" ");
-    	/*
-    	 * It is supposed to be for transpositionTable, so it depends on:
-    	 * - the position of the pieces (parts[0]).
-    	 * - the player who has to move (parts[2]).
-    	 * - the depth (an equal state but at a different depth should be expanded
-    	 * 	 until the limit of depth because it can achieve a better estimate).
-    	 */
-    	return parts[0] + " " + parts[2] + " " + depth;
+    private boolean getKnownState(long hash, int ply) {
+    	if (!transpositionTable.probe(hash, entry))
+    		return false;
+    	if (whoAmI != Constants.CELL_RED) {
+    		entry.score = -entry.score;
+    		entry.bound = getOppositeBound(entry.bound);
+    	}
+    	if (entry.score >= WIN/2)
+    		entry.score -= ply;
+    	else if (entry.score <= -WIN/2)
+    		entry.score += ply;
+    	return true;
     }
     
-    private String getSymmetricState(String key) {
-    	String[] parts = key.split(" ");
-    	String board = parts[0];
-    	StringBuffer symmetricKey = new StringBuffer();
-    	
-    	// symmetric board
-    	for (int i=0; i<NUMBER_OF_ROWS; i++)
-    		for (int j=NUMBER_OF_COLUMNS-1; j>=0; j--)
-    			symmetricKey.append(board.charAt(i*NUMBER_OF_COLUMNS + j));
+    private void addKnownState(GameState state, int ply, int depth, int value, int bound, long bestMove) {
+    	if (value >= WIN/2)
+    		value += ply;
+    	else if (value <= -WIN/2)
+    		value -= ply;
+    	if (whoAmI != Constants.CELL_RED) {
+    		value = -value;
+    		bound = getOppositeBound(bound);
+    	}
+    	transpositionTable.store(state.hash(), depth, value, bound, bestMove);
+    }
+    
+    private static int getOppositeBound(int bound) {
+    	if (bound == TranspositionTable.BOUND_LOWER)
+    		return TranspositionTable.BOUND_UPPER;
+    	if (bound == TranspositionTable.BOUND_UPPER)
+    		return TranspositionTable.BOUND_LOWER;
+    	return bound;
+    }
+    
+    /**
+     * Gets what the value returned by a search with window (alpha, beta)
+     * tells about the real value.
+     */
+    private static int getBound(int value, int alpha, int beta) {
+    	if (value <= alpha)
+    		return TranspositionTable.BOUND_UPPER;	// fail-low, the real value can be lower
+    	if (value >= beta)
+    		return TranspositionTable.BOUND_LOWER;	// fail-high, the real value can be higher
+    	return TranspositionTable.BOUND_EXACT;
+    }
+    
+    /**
+     * Orders moves as MovePicker does, but all at once (for the root and
+     * YBWC, which need all the moves).
+     */
+    private void moveOrdering(GameState state, long[] moves, int nMoves, long hashMove, int ply) {
+        if (2*ply >= killers.length)
+            killers = Arrays.copyOf(killers, 4*ply);
+        
+        // random order among moves with the same priority
+        for (int i=nMoves-1; i>0; i--) {
+            int j = random.nextInt(i+1);
+            long tmp = moves[i];
+            moves[i] = moves[j];
+            moves[j] = tmp;
+        }
+        
+        // first: best move found by a previous search
+        // second: jumps sorted by decreasing material captured
+        // third: killer moves, the most recent first
+        // fourth: normal moves for which the piece becomes king, by history
+        // fifth: the rest of the normal moves, by history
+        for (int i=0; i<nMoves; i++) {
+        	long move = moves[i];
+            if (move == hashMove)
+                priorities[i] = Integer.MAX_VALUE;
+            else if (move == killers[2*ply])
+            	priorities[i] = MovePicker.PRIORITY_KILLER + 1;
+            else if (move == killers[2*ply+1])
+            	priorities[i] = MovePicker.PRIORITY_KILLER;
+            else
+            	priorities[i] = MovePicker.priority(state, move, history);
+        }
+        
+        // stable insertion sort by decreasing priority
+        for (int i=1; i<nMoves; i++) {
+            long move = moves[i];
+            int priority = priorities[i];
+            int j = i;
+            for (; j>0 && priorities[j-1] < priority; j--) {
+                moves[j] = moves[j-1];
+                priorities[j] = priorities[j-1];
+            }
+            moves[j] = move;
+            priorities[j] = priority;
+        }
+    }
+    
+    /**
+     * Updates the stats and the move ordering heuristics when a move causes a
+     * cutoff: killers and history are only about normal moves, since jumps
+     * are always searched first anyway.
+     */
+    private void addCutoff(long move, int index, int depth, int ply) {
+    	cutoffs++;
+    	if (index == 0)
+    		firstMoveCutoffs++;
+    	if (!Move.isNormal(move))
+    		return;
     	
-    	// symmetric key
-    	for (int i=1; i<parts.length; i++)
-    		symmetricKey.append(" ").append(parts[i]);
+    	if (killers[2*ply] != move) {
+    		killers[2*ply+1] = killers[2*ply];
+    		killers[2*ply] = move;
+    	}
     	
-    	return symmetricKey.toString();
-    }
-    
-    private void moveOrdering(GameState state, Vector<GameState> nextStates, int depth) {
-        Vector<GameState> jump, becomeKing, normal;
-        Predicate<GameState> filterJump, filterNormal, filterKing;
-        
-        // filters
-        filterJump = s -> s.getMove().isJump();
-        filterNormal = s -> s.getMove().isNormal();
-        filterKing = s -> hasBecomeKing(state, s);
-        
-        // first: jumps sorted by decreasing length
-        jump = nextStates.stream()
-                .filter(filterJump)
-                .sorted((s1, s2) -> s2.getMove().length() - s1.getMove().length())
-                .collect(Collectors.toCollection(Vector::new));
-        // second: normal moves for which the piece becomes king
-        becomeKing = nextStates.stream()
-                .filter(filterNormal.and(filterKing))
-                .collect(Collectors.toCollection(Vector::new));
-        Collections.shuffle(becomeKing);
-        // third: the rest of the normal moves
-        normal = nextStates.stream()
-                .filter(filterNormal.and(filterKing.negate()))
-                .collect(Collectors.toCollection(Vector::new));
-        Collections.shuffle(normal);
-        
-        nextStates.clear();
-        nextStates.addAll(jump);
-        nextStates.addAll(becomeKing);
-        nextStates.addAll(normal);
-    }
-    
-    private boolean hasBecomeKing(GameState oldState, GameState newState) {
-        Move oldMove = oldState.getMove(), newMove = newState.getMove();
-        int oldLength = oldMove.length(), newLength = newMove.length();
-        if (oldLength == 0 || newLength == 0)
-            return false;
-        
-        boolean wasPiece = (oldState.get(oldMove.at(oldLength-1)) & Constants.CELL_KING) == 0;
-        boolean isKing = (newState.get(newMove.at(newLength-1)) & Constants.CELL_KING) != 0;
-        return wasPiece && isKing;
+    	int i = Move.from(move)*32 + Move.to(move);
+    	history[i] += depth*depth;
+    	if (history[i] >= MAX_HISTORY)
+    		ageHistory();
+    }
+    
+    private void ageHistory() {
+    	for (int i=0; i<history.length; i++)
+    		history[i] >>= 1;
+    }
+    
+    private void resetStats() {
+    	nodeVisited = 0;
+    	cutoffs = firstMoveCutoffs = 0;
+    	reducedMoves = researchedMoves = 0;
+    	probcutTries = probcutCuts = 0;
+    	etcTries = etcCuts = 0;
+    	iidSearches = 0;
+    	tablebaseHits = 0;
+    }
+    
+    private void addStats(Player other) {
+    	nodeVisited += other.nodeVisited;
+    	cutoffs += other.cutoffs;
+    	firstMoveCutoffs += other.firstMoveCutoffs;
+    	reducedMoves += other.reducedMoves;
+    	researchedMoves += other.researchedMoves;
+    	probcutTries += other.probcutTries;
+    	probcutCuts += other.probcutCuts;
+    	etcTries += other.etcTries;
+    	etcCuts += other.etcCuts;
+    	iidSearches += other.iidSearches;
+    	tablebaseHits += other.tablebaseHits;
+    }
+    
+    /**
+     * Copies the search settings of the player starting a helper or a worker.
+     */
+    private void copySettings(Player other) {
+    	maxDepth = other.maxDepth;
+    	mtdf = other.mtdf;
+    	lmrMoves = other.lmrMoves;
+    	lmrDepth = other.lmrDepth;
+    	lmrReduction = other.lmrReduction;
+    	probcut = other.probcut;
+    	probcutA = other.probcutA;
+    	probcutB = other.probcutB;
+    	probcutSigma = other.probcutSigma;
+    	etcDepth = other.etcDepth;
+    	iidDepth = other.iidDepth;
+    	tablebase = other.tablebase;
     }
     
     private boolean isWin(GameState state) {
@@ -0,0 +1,118 @@
+import java.util.Random;
+
+/**
+ * Fits the regression parameters of ProbCut (see Player.setProbCut()): the
+ * score of a search at depth D as a linear function of the score of a search
+ * at depth D-PROBCUT_GAP of the same state, plus an error.
+ *
+ * Usage: java ProbCutCalibration <depth> [<positions>] [<seed>]
+ * where depth is the deep one, D (8 by default), and positions is the number
+ * of states searched (200 by default).
+ *
+ * The states are taken from games starting with a few random moves, then
+ * played by the deep search itself. States with a single move, and scores of
+ * won or lost games, are left out. Every search starts with an empty
+ * transposition table.
+ *
+ * @author fruggeri
+ */
+
+public class ProbCutCalibration {
+    private static final int RANDOM_PLIES = 6;      // random moves at the start of each game
+    private static final int HASH_SIZE = 16;        // MB of transposition table
+
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int positions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Random random = args.length > 2 ? new Random(Long.parseLong(args[2])) : new Random();
+        int shallow = depth - Player.PROBCUT_GAP;
+        if (shallow < 1) {
+            System.err.println("Usage: java ProbCutCalibration <depth> [<positions>] [<seed>]");
+            System.err.println("The depth must be greater than " + Player.PROBCUT_GAP);
+            return;
+        }
+
+        TranspositionTable table = new TranspositionTable(HASH_SIZE);
+        Player player = new Player();
+        player.setTranspositionTable(table);
+        long[] moves = new long[GameState.MAX_MOVES];
+        double[] x = new double[positions];     // shallow scores
+        double[] y = new double[positions];     // deep scores
+        int n = 0;
+
+        GameState state = new GameState();
+        int ply = 0;
+        while (n < positions) {
+            int nMoves = state.findPossibleMoves(moves);
+
+            // new game
+            if (state.isEOG() || state.getMovesUntilDraw() <= 0 || nMoves == 0) {
+                state = new GameState();
+                ply = 0;
+                continue;
+            }
+
+            // random opening, so that the games are different
+            if (ply < RANDOM_PLIES || nMoves == 1) {
+                state = new GameState(state, new Move(moves[random.nextInt(nMoves)]));
+                ply++;
+                continue;
+            }
+
+            search(player, table, state, shallow);
+            int shallowScore = player.getScore();
+            GameState next = search(player, table, state, depth);
+            int deepScore = player.getScore();
+            if (Math.abs(shallowScore) < Player.PROBCUT_MAX_SCORE && Math.abs(deepScore) < Player.PROBCUT_MAX_SCORE) {
+                x[n] = shallowScore;
+                y[n] = deepScore;
+                n++;
+            }
+            state = next;
+            ply++;
+        }
+
+        // least squares
+        double meanX = 0, meanY = 0;
+        for (int i=0; i<n; i++) {
+            meanX += x[i];
+            meanY += y[i];
+        }
+        meanX /= n;
+        meanY /= n;
+        double varX = 0, varY = 0, cov = 0;
+        for (int i=0; i<n; i++) {
+            varX += (x[i]-meanX) * (x[i]-meanX);
+            varY += (y[i]-meanY) * (y[i]-meanY);
+            cov += (x[i]-meanX) * (y[i]-meanY);
+        }
+        if (varX == 0) {
+            System.err.println("The shallow scores are all equal, try more positions");
+            return;
+        }
+        double a = cov / varX;
+        double b = meanY - a*meanX;
+        double residuals = 0;
+        for (int i=0; i<n; i++)
+            residuals += (y[i] - a*x[i] - b) * (y[i] - a*x[i] - b);
+        double sigma = Math.sqrt(residuals / Math.max(n-2, 1));
+        double r = varY > 0 ? cov / Math.sqrt(varX*varY) : 1;
+
+        System.out.printf("depth %d from depth %d, %d positions%n", depth, shallow, n);
+        System.out.printf("a = %.3f, b = %.3f, sigma = %.3f (correlation %.3f)%n", a, b, sigma, r);
+        System.out.printf("Main option: probcut=%.3f,%.3f,%.3f%n", a, b, sigma);
+    }
+
+    /**
+     * Searches a state up to a certain depth, without ProbCut (the score is
+     * left in the player).
+     *
+     * @return the state after the move chosen
+     */
+    private static GameState search(Player player, TranspositionTable table, GameState state, int depth) {
+        table.clear();
+        player.setMaxDepth(depth);
+        return player.play(state, new Deadline(Long.MAX_VALUE));
+    }
+
+}
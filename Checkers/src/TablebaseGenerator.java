@@ -0,0 +1,228 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates the tables of the endgame tablebase (see EndgameTablebase) by
+ * retrograde analysis.
+ *
+ * Usage: java TablebaseGenerator <pieces> <directory> [compress] [threads=<N>]
+ * where pieces is the maximum number of pieces on the board (both colours,
+ * men and kings). The tables are written in the directory, one file per
+ * material signature, compressed with the compress flag (see
+ * CompressedTable). On a single core, the tables up to 4 pieces take
+ * 2 MB and less than a minute, the ones up to 5 pieces 49 MB and about 11
+ * minutes.
+ *
+ * The moves of a state lead to states with the colours swapped (seen from
+ * the opponent), with fewer pieces (after a jump), or with a man turned into
+ * a king (after a promotion). So the tables are generated in order of pieces
+ * and then of men, and a table is generated together with the one with the
+ * colours swapped: all the other tables reached by their moves are already
+ * done.
+ *
+ * All the states start unknown (stored as draws), then the tables are swept
+ * over and over: a state is won if one of its moves leads to a state lost
+ * for the opponent, and lost if all of them lead to states won for the
+ * opponent (or if there are no moves). When a sweep finds nothing new, the
+ * states still unknown are draws, since neither player can force a result.
+ * Each sweep is split among threads by ranges of states, each one written
+ * by a single thread (the states read from other ranges can only be stale,
+ * and any state changed is checked again by the next sweep).
+ *
+ * @author fruggeri
+ */
+
+public class TablebaseGenerator {
+    private static final int CHUNK = 1 << 16;   // states swept by a task (a multiple of 4)
+
+    // men can't stand where they would be promoted
+    private static final int RED_PROMOTION = 0xF0000000;
+    private static final int WHITE_PROMOTION = 0x0000000F;
+
+    private final Map<Integer, byte[]> tables = new HashMap<>();   // done or being generated
+    private final boolean compress;
+
+    private TablebaseGenerator(boolean compress) {
+        this.compress = compress;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        int pieces = -1;
+        String directory = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean compress = false;
+
+        for (String param : args) {
+            if (param.equals("compress")) {
+                compress = true;
+            } else if (param.startsWith("threads=")) {
+                threads = Integer.parseInt(param.substring("threads=".length()));
+            } else if (pieces < 0) {
+                pieces = Integer.parseInt(param);
+            } else {
+                directory = param;
+            }
+        }
+        if (pieces < 2 || directory == null) {
+            System.err.println("Usage: java TablebaseGenerator <pieces> <directory> [compress] [threads=<N>]");
+            return;
+        }
+        new File(directory).mkdirs();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            new TablebaseGenerator(compress).generateAll(pieces, directory, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void generateAll(int maxPieces, String directory, ExecutorService executor)
+            throws IOException, InterruptedException, ExecutionException {
+        for (int pieces=2; pieces<=maxPieces; pieces++) {
+            for (int men=0; men<=pieces; men++) {
+                for (int redMen=0; redMen<=men; redMen++) {
+                    for (int redKings=0; redKings<=pieces-men; redKings++) {
+                        int whiteMen = men - redMen;
+                        int whiteKings = pieces - men - redKings;
+                        int red = redMen + redKings, white = whiteMen + whiteKings;
+                        if (red == 0 || white == 0 || red > GameState.PIECES_PER_PLAYER || white > GameState.PIECES_PER_PLAYER)
+                            continue;
+                        int signature = EndgameTablebase.getSignature(redMen, redKings, whiteMen, whiteKings);
+                        if (!tables.containsKey(signature))
+                            generate(signature, directory, executor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates a table and the one with the colours swapped, and writes them.
+     */
+    private void generate(int signature, String directory, ExecutorService executor)
+            throws IOException, InterruptedException, ExecutionException {
+        long start = System.nanoTime();
+        int reversed = EndgameTablebase.getReversed(signature);
+        int[] signatures = signature == reversed ? new int[] { signature } : new int[] { signature, reversed };
+        for (int s : signatures)
+            tables.put(s, new byte[(int) EndgameTablebase.getBytes(s)]);
+
+        int sweeps = 0;
+        long changed;
+        do {
+            List<Future<Long>> tasks = new ArrayList<>();
+            for (int s : signatures) {
+                final int sweptSignature = s;
+                long size = EndgameTablebase.getSize(s);
+                for (long from=0; from<size; from+=CHUNK) {
+                    final long first = from, last = Math.min(from + CHUNK, size);
+                    tasks.add(executor.submit(() -> sweep(sweptSignature, first, last)));
+                }
+            }
+            changed = 0;
+            for (Future<Long> task : tasks)
+                changed += task.get();
+            sweeps++;
+        } while (changed > 0);
+
+        for (int s : signatures) {
+            byte[] table = tables.get(s);
+            File path = new File(directory, EndgameTablebase.getFileName(s, compress));
+            try (OutputStream file = new BufferedOutputStream(new FileOutputStream(path))) {
+                if (compress)
+                    CompressedTable.write(table, EndgameTablebase.getSize(s), file);
+                else
+                    file.write(table);
+            }
+            long[] counts = new long[3];
+            for (long i=0; i<EndgameTablebase.getSize(s); i++)
+                counts[get(table, i)]++;
+            System.out.printf("%s: %d states, %d wins, %d losses, %d draws (or illegal), %d sweeps, %d ms, %d bytes%n",
+                    path.getName(), EndgameTablebase.getSize(s),
+                    counts[EndgameTablebase.WIN], counts[EndgameTablebase.LOSS], counts[EndgameTablebase.DRAW],
+                    sweeps, (System.nanoTime() - start) / 1000000, path.length());
+        }
+    }
+
+    /**
+     * Looks for new results among the states of a table in a range of indices.
+     *
+     * @return the number of results found
+     */
+    private long sweep(int signature, long first, long last) {
+        byte[] table = tables.get(signature);
+        long[] moves = new long[GameState.MAX_MOVES];
+        int[] bitboards = new int[3];
+        long changed = 0;
+
+        for (long i=first; i<last; i++) {
+            if (get(table, i) != EndgameTablebase.DRAW)
+                continue;   // already known
+
+            EndgameTablebase.getState(signature, i, bitboards);
+            int red = bitboards[0], white = bitboards[1], kings = bitboards[2];
+            if ((red & ~kings & RED_PROMOTION) != 0 || (white & ~kings & WHITE_PROMOTION) != 0)
+                continue;   // illegal, never looked up
+
+            int result = solve(new GameState(red, white, kings, Constants.CELL_RED), moves);
+            if (result != EndgameTablebase.DRAW) {
+                table[(int) (i >>> 2)] |= result << ((i & 3) << 1);
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the result of a state with red moving from the results of the
+     * states after its moves, DRAW if still unknown.
+     */
+    private int solve(GameState state, long[] moves) {
+        int nMoves = state.findJumps(moves);
+        if (nMoves == 0)
+            nMoves = state.findNormalMoves(moves);
+
+        boolean lost = true;    // until a move doesn't lead to a win for the opponent
+        for (int i=0; i<nMoves; i++) {
+            long undo = state.makeMove(moves[i]);
+            int result = lookup(state);
+            state.unmakeMove(moves[i], undo);
+            if (result == EndgameTablebase.LOSS)
+                return EndgameTablebase.WIN;
+            if (result != EndgameTablebase.WIN)
+                lost = false;
+        }
+        return lost ? EndgameTablebase.LOSS : EndgameTablebase.DRAW;
+    }
+
+    /**
+     * Gets the current result of a state with white moving, in the table of
+     * the state reversed.
+     */
+    private int lookup(GameState state) {
+        int red = Integer.reverse(state.getPieces(Constants.CELL_WHITE));
+        int white = Integer.reverse(state.getPieces(Constants.CELL_RED));
+        int kings = Integer.reverse(state.getKings());
+        if (red == 0)
+            return EndgameTablebase.LOSS;
+        byte[] table = tables.get(EndgameTablebase.getSignature(red, white, kings));
+        return get(table, EndgameTablebase.index(red, white, kings));
+    }
+
+    private static int get(byte[] table, long index) {
+        return (table[(int) (index >>> 2)] >>> ((index & 3) << 1)) & 3;
+    }
+
+}
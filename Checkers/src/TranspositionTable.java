@@ -0,0 +1,205 @@
+/**
+ * Transposition table of fixed size, preallocated as an array of longs.
+ *
+ * The table is made of buckets of two entries: the first one is replaced
+ * only by searches that are at least as deep (depth-preferred), the second
+ * one every time the first one is not (always-replace).
+ *
+ * The table is meant to be kept for the whole game: every search marks its
+ * entries with its age (see newSearch()), and entries left by previous
+ * searches can be replaced in the depth-preferred slot by shallower ones.
+ *
+ * Each entry takes three longs:
+ * - the hash of the state xor the other two longs (key check).
+ * - the best move, packed as described in Move (0 if unknown).
+ * - the data: score (bits 0-31), depth (bits 32-39), bound (bits 40-41)
+ *   and age (bits 42-49).
+ * Since the key check covers the whole entry, an entry that is being
+ * written by someone else while it is read (a torn entry) just looks like
+ * a miss. So the table can be shared without locks.
+ *
+ * The longs are kept in a long[], subclasses can keep them elsewhere by
+ * overriding load() and save().
+ *
+ * @author fruggeri
+ */
+
+public class TranspositionTable {
+    // bounds (0 means that the entry is empty)
+    public static final int BOUND_EXACT = 1;    // the score is exact
+    public static final int BOUND_LOWER = 2;    // the score is a lower bound (fail-high)
+    public static final int BOUND_UPPER = 3;    // the score is an upper bound (fail-low)
+
+    protected static final int ENTRY_SIZE = 3;              // longs per entry
+    protected static final int BUCKET_SIZE = 2*ENTRY_SIZE;  // longs per bucket
+    private static final int MAX_DEPTH = 0xFF;
+    private static final int MAX_AGE = 0xFF;
+
+    private final long[] table;
+    private final long mask;    // number of buckets - 1
+    private int age;            // age of the current search
+
+    /**
+     * Entry found by probe(), kept by the caller so that probing doesn't
+     * allocate anything.
+     */
+    public static class Entry {
+        public long move;
+        public int score;
+        public int depth;
+        public int bound;
+        public int age;
+    }
+
+    /**
+     * Allocates the table.
+     *
+     * @param sizeMB
+     *            maximum size of the table in MB, rounded down to a power
+     *            of two number of buckets
+     */
+    public TranspositionTable(int sizeMB) {
+        long buckets = getBuckets((long) sizeMB << 20);
+        buckets = Math.min(buckets, Integer.highestOneBit(Integer.MAX_VALUE / BUCKET_SIZE));
+        table = new long[(int) buckets * BUCKET_SIZE];
+        mask = buckets - 1;
+    }
+
+    /**
+     * Constructor for subclasses, which keep the longs of the table on their
+     * own.
+     *
+     * @param buckets
+     *            number of buckets, a power of two
+     */
+    protected TranspositionTable(long buckets) {
+        table = null;
+        mask = buckets - 1;
+    }
+
+    /**
+     * Gets the largest power of two number of buckets that fit in a certain
+     * number of bytes.
+     */
+    protected static long getBuckets(long bytes) {
+        return Long.highestOneBit(Math.max(1, bytes / (BUCKET_SIZE*8)));
+    }
+
+    /**
+     * Gets the index-th long of the table.
+     */
+    protected long load(long index) {
+        return table[(int) index];
+    }
+
+    /**
+     * Sets the index-th long of the table.
+     */
+    protected void save(long index, long value) {
+        table[(int) index] = value;
+    }
+
+    /**
+     * Looks for a state in the table.
+     *
+     * @param hash
+     *            the hash of the state
+     * @param entry
+     *            where the entry found is copied
+     * @return true if the state was found
+     */
+    public boolean probe(long hash, Entry entry) {
+        long index = bucket(hash);
+        for (long i=index; i<index+BUCKET_SIZE; i+=ENTRY_SIZE) {
+            long key = load(i), move = load(i+1), data = load(i+2);
+            if ((key ^ move ^ data) == hash && data != 0) {
+                decode(move, data, entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores the result of the search of a state.
+     *
+     * @param hash
+     *            the hash of the state
+     * @param depth
+     *            the depth of the search
+     * @param score
+     *            the score found
+     * @param bound
+     *            one of BOUND_EXACT, BOUND_LOWER or BOUND_UPPER
+     * @param move
+     *            the best move found, 0 if unknown
+     */
+    public void store(long hash, int depth, int score, int bound, long move) {
+        long index = bucket(hash);
+        long oldMove = load(index+1), oldData = load(index+2);
+        boolean sameState = (load(index) ^ oldMove ^ oldData) == hash;
+
+        // depth-preferred slot, unless it already holds a deeper search of
+        // another state done by the current search
+        if (!sameState && oldData != 0 && getAge(oldData) == age && depth < getDepth(oldData)) {
+            index += ENTRY_SIZE;    // always-replace slot
+            oldMove = load(index+1);
+            oldData = load(index+2);
+            sameState = (load(index) ^ oldMove ^ oldData) == hash;
+        }
+
+        // keep the best move of a previous search of the same state
+        if (move == 0 && sameState)
+            move = oldMove;
+
+        long data = encode(depth, score, bound);
+        save(index, hash ^ move ^ data);
+        save(index+1, move);
+        save(index+2, data);
+    }
+
+    /**
+     * Marks the beginning of a new search, so that the entries stored from
+     * now on are younger than the previous ones. The older entries are still
+     * found by probe(), but they are the first to be replaced.
+     */
+    public void newSearch() {
+        age = (age+1) & MAX_AGE;
+    }
+
+    /**
+     * Empties the table.
+     */
+    public void clear() {
+        for (long i=0; i<(mask+1)*BUCKET_SIZE; i++)
+            save(i, 0);
+    }
+
+    private long bucket(long hash) {
+        return (hash & mask) * BUCKET_SIZE;
+    }
+
+    private long encode(int depth, int score, int bound) {
+        return (score & 0xFFFFFFFFL) |
+                ((long) Math.min(Math.max(depth, 0), MAX_DEPTH) << 32) |
+                ((long) bound << 40) |
+                ((long) age << 42);
+    }
+
+    private static void decode(long move, long data, Entry entry) {
+        entry.move = move;
+        entry.score = (int) data;
+        entry.depth = getDepth(data);
+        entry.bound = (int) (data >>> 40) & 3;
+        entry.age = getAge(data);
+    }
+
+    private static int getDepth(long data) {
+        return (int) (data >>> 32) & MAX_DEPTH;
+    }
+
+    private static int getAge(long data) {
+        return (int) (data >>> 42) & MAX_AGE;
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Compares the YBWC search with the serial one at a fixed depth.
+ *
+ * Usage: java YBWCBenchmark <depth> <threads> [<state>...]
+ * where each state is in the format of GameState.toMessage() (the initial
+ * state by default). Every search starts with an empty transposition table.
+ *
+ * The speedup is measured both against the serial search and against YBWC
+ * with one thread. Both search the root with aspiration windows and prune
+ * the same way, but the younger brothers of a split node start with the
+ * window known when they start, and the ones already running are not
+ * stopped by a late cutoff, so YBWC visits more nodes even with one thread.
+ * The second speedup leaves this overhead out and only tells how well the
+ * work is spread among the threads. The first one also includes the cost
+ * of the deadline checks: the serial search reads the CPU time of its
+ * thread (see Deadline) at every node, which is much slower than the
+ * wall-clock time read by the workers, so it is higher even with a single
+ * core.
+ *
+ * @author fruggeri
+ */
+
+public class YBWCBenchmark {
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java YBWCBenchmark <depth> <threads> [<state>...]");
+            return;
+        }
+        int depth = Integer.parseInt(args[0]);
+        int threads = Integer.parseInt(args[1]);
+        String[] states = args.length > 2 ?
+                java.util.Arrays.copyOfRange(args, 2, args.length) :
+                new String[] { new GameState().toMessage() };
+
+        // warm up the JIT, so that the first search isn't penalized
+        GameState first = new GameState(states[0]);
+        run(first, depth-1, 0);
+        run(first, depth-1, threads);
+
+        long serialTotal = 0, singleTotal = 0, parallelTotal = 0;
+        for (String message : states) {
+            GameState state = new GameState(message);
+            long[] serial = run(state, depth, 0);
+            long[] single = run(state, depth, 1);
+            long[] parallel = run(state, depth, threads);
+            serialTotal += serial[0];
+            singleTotal += single[0];
+            parallelTotal += parallel[0];
+            System.out.println(message);
+            System.out.printf("  serial:           %6d ms, %10d nodes%n", serial[0], serial[1]);
+            System.out.printf("  ybwc, 1 thread:   %6d ms, %10d nodes%n", single[0], single[1]);
+            System.out.printf("  ybwc, %d threads: %6d ms, %10d nodes%n", threads, parallel[0], parallel[1]);
+        }
+        System.out.printf("speedup with %d threads at depth %d: %.2f (vs serial), %.2f (vs 1 thread)%n",
+                threads, depth, speedup(serialTotal, parallelTotal), speedup(singleTotal, parallelTotal));
+    }
+
+    private static double speedup(long before, long after) {
+        return (double) before / Math.max(after, 1);
+    }
+
+    /**
+     * Searches a state up to a certain depth.
+     *
+     * @return the wall-clock time in ms and the nodes visited
+     */
+    private static long[] run(GameState state, int depth, int threads) {
+        Player player = new Player();
+        player.setMaxDepth(depth);
+        if (threads > 0)
+            player.setParallelSearch(threads);
+        long start = System.nanoTime();
+        player.play(state, new Deadline(Long.MAX_VALUE));
+        return new long[] { (System.nanoTime() - start) / 1000000, player.getNodeVisited() };
+    }
+
+}